@@ -1,525 +1,4232 @@
-package NamanDigital;
-
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
-import java.security.MessageDigest;
-import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
-import java.util.*;
-
-    //Simple Library Management System
-
-    public class LibraryManagement {
-
-        // ===== Models =====
-        static class Book {
-            long id;
-            String title;
-            String author;
-            int totalCopies;
-            int availableCopies;
-
-            Book(long id, String title, String author, int totalCopies, int availableCopies) {
-                this.id = id;
-                this.title = title;
-                this.author = author;
-                this.totalCopies = totalCopies;
-                this.availableCopies = availableCopies;
-            }
-        }
-
-        static class User {
-            String username;
-            String passwordHash; // sha-256
-            String fullName;
-
-            User(String username, String passwordHash, String fullName) {
-                this.username = username;
-                this.passwordHash = passwordHash;
-                this.fullName = fullName;
-            }
-        }
-
-        static class Loan {
-            long id;
-            long bookId;
-            String username;
-            LocalDate issueDate;
-            LocalDate dueDate;
-            LocalDate returnDate; // null if not returned
-
-            Loan(long id, long bookId, String username, LocalDate issueDate, LocalDate dueDate, LocalDate returnDate) {
-                this.id = id;
-                this.bookId = bookId;
-                this.username = username;
-                this.issueDate = issueDate;
-                this.dueDate = dueDate;
-                this.returnDate = returnDate;
-            }
-
-            boolean isReturned() { return returnDate != null; }
-        }
-
-        // ===== Storage (CSV) =====
-        static class CsvStore {
-            private final Path dir;
-            private final Path booksCsv;
-            private final Path usersCsv;
-            private final Path loansCsv;
-            private final DateTimeFormatter DF = DateTimeFormatter.ISO_LOCAL_DATE;
-
-            CsvStore(String base) {
-                this.dir = Paths.get(base);
-                this.booksCsv = dir.resolve("books.csv");
-                this.usersCsv = dir.resolve("users.csv");
-                this.loansCsv = dir.resolve("loans.csv");
-            }
-
-            void init() {
-                try {
-                    if (!Files.exists(dir)) Files.createDirectories(dir);
-                    if (!Files.exists(booksCsv)) Files.write(booksCsv, Collections.singletonList("id,title,author,total,available"), StandardCharsets.UTF_8);
-                    if (!Files.exists(usersCsv)) Files.write(usersCsv, Collections.singletonList("username,passwordHash,fullName"), StandardCharsets.UTF_8);
-                    if (!Files.exists(loansCsv)) Files.write(loansCsv, Collections.singletonList("id,bookId,username,issueDate,dueDate,returnDate"), StandardCharsets.UTF_8);
-                    // ensure default admin exists
-                    List<User> us = loadUsers();
-                    boolean hasAdmin = us.stream().anyMatch(u -> u.username.equals("admin"));
-                    if (!hasAdmin) {
-                        String hash = Security.sha256Hex("admin123");
-                        try (BufferedWriter bw = Files.newBufferedWriter(usersCsv, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
-                            bw.write("admin," + hash + ",Administrator\n");
-                        }
-                    }
-                } catch (IOException e) { throw new RuntimeException(e); }
-            }
-
-            // Books
-            List<Book> loadBooks() {
-                List<Book> list = new ArrayList<>();
-                try (BufferedReader br = Files.newBufferedReader(booksCsv, StandardCharsets.UTF_8)) {
-                    String line; boolean first = true;
-                    while ((line = br.readLine()) != null) {
-                        if (first) { first = false; continue; }
-                        if (line.trim().isEmpty()) continue;
-                        String[] p = splitCsv(line);
-                        long id = Long.parseLong(p[0]);
-                        String title = p[1];
-                        String author = p[2];
-                        int total = Integer.parseInt(p[3]);
-                        int avail = Integer.parseInt(p[4]);
-                        list.add(new Book(id, title, author, total, avail));
-                    }
-                } catch (IOException e) { throw new RuntimeException(e); }
-                return list;
-            }
-
-            void saveBooks(List<Book> books) {
-                List<String> lines = new ArrayList<>();
-                lines.add("id,title,author,total,available");
-                for (Book b : books) lines.add(String.join(",", String.valueOf(b.id), esc(b.title), esc(b.author), String.valueOf(b.totalCopies), String.valueOf(b.availableCopies)));
-                try { Files.write(booksCsv, lines, StandardCharsets.UTF_8); } catch (IOException e) { throw new RuntimeException(e); }
-            }
-
-            // Users
-            List<User> loadUsers() {
-                List<User> list = new ArrayList<>();
-                try (BufferedReader br = Files.newBufferedReader(usersCsv, StandardCharsets.UTF_8)) {
-                    String line; boolean first = true;
-                    while ((line = br.readLine()) != null) {
-                        if (first) { first = false; continue; }
-                        if (line.trim().isEmpty()) continue;
-                        String[] p = splitCsv(line);
-                        list.add(new User(p[0], p[1], p.length>2?p[2]:""));
-                    }
-                } catch (IOException e) { throw new RuntimeException(e); }
-                return list;
-            }
-
-            void saveUsers(List<User> users) {
-                List<String> lines = new ArrayList<>();
-                lines.add("username,passwordHash,fullName");
-                for (User u : users) lines.add(u.username + "," + u.passwordHash + "," + esc(u.fullName));
-                try { Files.write(usersCsv, lines, StandardCharsets.UTF_8); } catch (IOException e) { throw new RuntimeException(e); }
-            }
-
-            // Loans
-            List<Loan> loadLoans() {
-                List<Loan> list = new ArrayList<>();
-                try (BufferedReader br = Files.newBufferedReader(loansCsv, StandardCharsets.UTF_8)) {
-                    String line; boolean first = true;
-                    while ((line = br.readLine()) != null) {
-                        if (first) { first = false; continue; }
-                        if (line.trim().isEmpty()) continue;
-                        String[] p = splitCsv(line);
-                        long id = Long.parseLong(p[0]);
-                        long bookId = Long.parseLong(p[1]);
-                        String username = p[2];
-                        LocalDate issue = LocalDate.parse(p[3], DF);
-                        LocalDate due = LocalDate.parse(p[4], DF);
-                        LocalDate ret = p.length>5 && !p[5].isEmpty() ? LocalDate.parse(p[5], DF) : null;
-                        list.add(new Loan(id, bookId, username, issue, due, ret));
-                    }
-                } catch (IOException e) { throw new RuntimeException(e); }
-                return list;
-            }
-
-            void saveLoans(List<Loan> loans) {
-                List<String> lines = new ArrayList<>();
-                lines.add("id,bookId,username,issueDate,dueDate,returnDate");
-                for (Loan l : loans) lines.add(String.join(",", String.valueOf(l.id), String.valueOf(l.bookId), l.username, l.issueDate.format(DF), l.dueDate.format(DF), l.returnDate==null?"":l.returnDate.format(DF)));
-                try { Files.write(loansCsv, lines, StandardCharsets.UTF_8); } catch (IOException e) { throw new RuntimeException(e); }
-            }
-
-            // CSV helpers
-            private static String esc(String s) {
-                if (s == null) return "";
-                boolean need = s.contains(",") || s.contains("\"") || s.contains("\n");
-                String t = s.replace("\"", "\"\"");
-                return need ? "\"" + t + "\"" : t;
-            }
-
-            private static String[] splitCsv(String line) {
-                List<String> parts = new ArrayList<>();
-                StringBuilder cur = new StringBuilder();
-                boolean inQ = false;
-                for (int i=0;i<line.length();i++) {
-                    char c = line.charAt(i);
-                    if (inQ) {
-                        if (c=='"') {
-                            if (i+1<line.length() && line.charAt(i+1)=='"') { cur.append('"'); i++; }
-                            else inQ = false;
-                        } else cur.append(c);
-                    } else {
-                        if (c=='"') inQ = true;
-                        else if (c==',') { parts.add(cur.toString()); cur.setLength(0); }
-                        else cur.append(c);
-                    }
-                }
-                parts.add(cur.toString());
-                return parts.toArray(new String[0]);
-            }
-        }
-
-        // ===== Utilities =====
-        static class Security {
-            static String sha256Hex(String in) {
-                try {
-                    MessageDigest md = MessageDigest.getInstance("SHA-256");
-                    byte[] h = md.digest(in.getBytes(StandardCharsets.UTF_8));
-                    StringBuilder sb = new StringBuilder();
-                    for (byte b : h) sb.append(String.format("%02x", b));
-                    return sb.toString();
-                } catch (Exception e) { throw new RuntimeException(e); }
-            }
-        }
-
-        // ===== Services =====
-        static class BookService {
-            private final CsvStore store;
-            private List<Book> books;
-
-            BookService(CsvStore store) { this.store = store; this.books = store.loadBooks(); }
-
-            List<Book> all() { return new ArrayList<>(books); }
-
-            Book find(long id) { return books.stream().filter(b->b.id==id).findFirst().orElse(null); }
-
-            Book create(String title, String author, int copies) {
-                long id = nextId();
-                Book b = new Book(id, title, author, copies, copies);
-                books.add(b);
-                store.saveBooks(books);
-                return b;
-            }
-
-            boolean update(long id, String title, String author, Integer totalCopies) {
-                Book b = find(id); if (b==null) return false;
-                if (title!=null) b.title = title;
-                if (author!=null) b.author = author;
-                if (totalCopies!=null) {
-                    int diff = totalCopies - b.totalCopies;
-                    b.totalCopies = totalCopies;
-                    b.availableCopies += diff; // adjust availability accordingly
-                    if (b.availableCopies < 0) b.availableCopies = 0;
-                }
-                store.saveBooks(books);
-                return true;
-            }
-
-            boolean delete(long id) {
-                Book b = find(id); if (b==null) return false;
-                if (b.availableCopies != b.totalCopies) return false; // some copies lent out
-                boolean removed = books.removeIf(x->x.id==id);
-                if (removed) store.saveBooks(books);
-                return removed;
-            }
-
-            void changeAvailable(long id, int delta) {
-                Book b = find(id); if (b==null) throw new IllegalArgumentException("Book not found");
-                int avail = b.availableCopies + delta;
-                if (avail < 0 || avail > b.totalCopies) throw new IllegalArgumentException("Invalid availability change");
-                b.availableCopies = avail;
-                store.saveBooks(books);
-            }
-
-            private long nextId() { return books.stream().map(x->x.id).max(Long::compare).orElse(1000L) + 1; }
-        }
-
-        static class UserService {
-            private final CsvStore store;
-            private List<User> users;
-
-            UserService(CsvStore store) { this.store = store; this.users = store.loadUsers(); }
-
-            boolean authenticate(String username, String password) {
-                String h = Security.sha256Hex(password);
-                return users.stream().anyMatch(u->u.username.equals(username) && u.passwordHash.equals(h));
-            }
-
-            boolean addUser(String username, String password, String fullName) {
-                if (users.stream().anyMatch(u->u.username.equals(username))) return false;
-                users.add(new User(username, Security.sha256Hex(password), fullName==null?"":fullName));
-                store.saveUsers(users);
-                return true;
-            }
-
-            boolean deleteUser(String username, List<Loan> loans) {
-                boolean hasActive = loans.stream().anyMatch(l->l.username.equals(username) && !l.isReturned());
-                if (hasActive) return false;
-                boolean removed = users.removeIf(u->u.username.equals(username));
-                if (removed) store.saveUsers(users);
-                return removed;
-            }
-
-            List<User> all() { return new ArrayList<>(users); }
-        }
-
-        static class LoanService {
-            private final CsvStore store;
-            private final BookService books;
-            private List<Loan> loans;
-            private final int loanDays = 14; // default loan period
-            private final double finePerDay = 5.0; // currency units per day late
-
-            LoanService(CsvStore store, BookService books) { this.store = store; this.books = books; this.loans = store.loadLoans(); }
-
-            List<Loan> all() { return new ArrayList<>(loans); }
-
-            List<Loan> activeForUser(String username) {
-                List<Loan> out = new ArrayList<>();
-                for (Loan l : loans) if (l.username.equals(username) && !l.isReturned()) out.add(l);
-                return out;
-            }
-
-            Loan issue(long bookId, String username) {
-                Book b = books.find(bookId); if (b==null) throw new IllegalArgumentException("Book not found");
-                if (b.availableCopies <= 0) throw new IllegalArgumentException("No copies available");
-                LocalDate issue = LocalDate.now();
-                LocalDate due = issue.plusDays(loanDays);
-                long id = nextId();
-                Loan l = new Loan(id, bookId, username, issue, due, null);
-                loans.add(l);
-                books.changeAvailable(bookId, -1);
-                store.saveLoans(loans);
-                return l;
-            }
-
-            double returnBook(long loanId) {
-                Loan l = loans.stream().filter(x->x.id==loanId).findFirst().orElse(null);
-                if (l==null) throw new IllegalArgumentException("Loan not found");
-                if (l.isReturned()) throw new IllegalArgumentException("Already returned");
-                LocalDate ret = LocalDate.now();
-                l.returnDate = ret;
-                books.changeAvailable(l.bookId, +1);
-                store.saveLoans(loans);
-                long overdue = ChronoUnit.DAYS.between(l.dueDate, ret);
-                if (overdue > 0) return overdue * finePerDay;
-                return 0.0;
-            }
-
-            private long nextId() { return loans.stream().map(x->x.id).max(Long::compare).orElse(5000L) + 1; }
-        }
-
-        // ===== Console UI =====
-        static class ConsoleApp {
-            private final Scanner sc = new Scanner(System.in);
-            private final UserService users;
-            private final BookService books;
-            private final LoanService loans;
-            private String currentUser;
-
-            ConsoleApp(UserService users, BookService books, LoanService loans) {
-                this.users = users; this.books = books; this.loans = loans;
-            }
-
-            void run() {
-                System.out.println("Simple Library Management System");
-                while (true) {
-                    if (currentUser == null) {
-                        System.out.println("\n1) Login\n2) Register\n0) Exit");
-                        System.out.print("Choose: ");
-                        String c = sc.nextLine().trim();
-                        switch (c) {
-                            case "1": login(); break;
-                            case "2": register(); break;
-                            case "0": System.out.println("Bye"); return;
-                            default: System.out.println("Invalid");
-                        }
-                    } else {
-                        showMainMenu();
-                    }
-                }
-            }
-
-            private void login() {
-                System.out.print("Username: "); String u = sc.nextLine().trim();
-                System.out.print("Password: "); String p = sc.nextLine().trim();
-                if (users.authenticate(u, p)) { currentUser = u; System.out.println("Welcome, " + u); }
-                else System.out.println("Auth failed");
-            }
-
-            private void register() {
-                System.out.print("Choose username: "); String u = sc.nextLine().trim();
-                System.out.print("Full name: "); String name = sc.nextLine().trim();
-                System.out.print("Password: "); String p = sc.nextLine().trim();
-                boolean ok = users.addUser(u, p, name);
-                System.out.println(ok?"Registered. You may login.":"Username exists.");
-            }
-
-            private void logout() { currentUser = null; System.out.println("Logged out."); }
-
-            private void showMainMenu() {
-                System.out.println("\n-- Main Menu (logged in as: " + currentUser + ") --");
-                System.out.println("1) Browse Books\n2) My Loans\n3) Borrow Book\n4) Return Book\n5) Account (deregister)\n6) Admin Panel (admin only)\n7) Logout\n0) Exit");
-                System.out.print("Choose: ");
-                String c = sc.nextLine().trim();
-                switch (c) {
-                    case "1": listBooks(); break;
-                    case "2": myLoans(); break;
-                    case "3": borrow(); break;
-                    case "4": returnBook(); break;
-                    case "5": deregister(); break;
-                    case "6": adminPanel(); break;
-                    case "7": logout(); break;
-                    case "0": System.out.println("Bye"); System.exit(0); break;
-                    default: System.out.println("Invalid");
-                }
-            }
-
-            private void listBooks() {
-                System.out.println("ID | Title | Author | Available/Total");
-                for (Book b : books.all()) {
-                    System.out.printf("%d | %s | %s | %d/%d%n", b.id, b.title, b.author, b.availableCopies, b.totalCopies);
-                }
-            }
-
-            private void myLoans() {
-                List<Loan> my = loans.activeForUser(currentUser);
-                if (my.isEmpty()) { System.out.println("No active loans."); return; }
-                System.out.println("LoanID | BookID | Title | Issue | Due");
-                for (Loan l : my) {
-                    Book b = books.find(l.bookId);
-                    System.out.printf("%d | %d | %s | %s | %s%n", l.id, l.bookId, b==null?"#"+l.bookId:b.title, l.issueDate, l.dueDate);
-                }
-            }
-
-            private void borrow() {
-                try {
-                    System.out.print("Enter Book ID to borrow: "); long id = Long.parseLong(sc.nextLine().trim());
-                    Loan l = loans.issue(id, currentUser);
-                    System.out.println("Issued. Loan ID: " + l.id + ", due: " + l.dueDate);
-                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
-            }
-
-            private void returnBook() {
-                try {
-                    System.out.print("Enter Loan ID to return: "); long id = Long.parseLong(sc.nextLine().trim());
-                    double fine = loans.returnBook(id);
-                    if (fine > 0) System.out.println("Returned. Late fee: " + String.format("%.2f", fine));
-                    else System.out.println("Returned on time. No fee.");
-                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
-            }
-
-            private void deregister() {
-                System.out.print("Confirm deregister account (type DELETE): "); String c = sc.nextLine().trim();
-                if (!c.equals("DELETE")) { System.out.println("Cancelled."); return; }
-                boolean ok = users.deleteUser(currentUser, loans.all());
-                if (ok) { System.out.println("Account removed."); currentUser = null; }
-                else System.out.println("Cannot deregister: active loans exist or error.");
-            }
-
-            private void adminPanel() {
-                if (!currentUser.equals("admin")) { System.out.println("Admin access only."); return; }
-                while (true) {
-                    System.out.println("\n-- Admin Panel --\n1) Add Book\n2) Update Book\n3) Delete Book\n4) List Users\n5) List Loans\n0) Back");
-                    System.out.print("Choose: "); String c = sc.nextLine().trim();
-                    switch (c) {
-                        case "1": addBook(); break;
-                        case "2": updateBook(); break;
-                        case "3": deleteBook(); break;
-                        case "4": listUsers(); break;
-                        case "5": listAllLoans(); break;
-                        case "0": return;
-                        default: System.out.println("Invalid");
-                    }
-                }
-            }
-
-            private void addBook() {
-                try {
-                    System.out.print("Title: "); String t = sc.nextLine().trim();
-                    System.out.print("Author: "); String a = sc.nextLine().trim();
-                    System.out.print("Copies: "); int c = Integer.parseInt(sc.nextLine().trim());
-                    Book b = books.create(t, a, c);
-                    System.out.println("Added book ID: " + b.id);
-                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
-            }
-
-            private void updateBook() {
-                try {
-                    System.out.print("Book ID: "); long id = Long.parseLong(sc.nextLine().trim());
-                    Book b = books.find(id); if (b==null) { System.out.println("Not found"); return; }
-                    System.out.print("New title (blank keep): "); String t = sc.nextLine();
-                    System.out.print("New author (blank keep): "); String a = sc.nextLine();
-                    System.out.print("New total copies (blank keep): "); String tc = sc.nextLine();
-                    Integer tot = tc.isBlank()?null:Integer.parseInt(tc);
-                    boolean ok = books.update(id, t.isBlank()?null:t, a.isBlank()?null:a, tot);
-                    System.out.println(ok?"Updated":"Failed");
-                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
-            }
-
-            private void deleteBook() {
-                try {
-                    System.out.print("Book ID to delete: "); long id = Long.parseLong(sc.nextLine().trim());
-                    boolean ok = books.delete(id);
-                    System.out.println(ok?"Deleted":"Cannot delete (may have active loans or not exist)");
-                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
-            }
-
-            private void listUsers() {
-                System.out.println("Username | Full Name");
-                for (User u : users.all()) System.out.println(u.username + " | " + u.fullName);
-            }
-
-            private void listAllLoans() {
-                System.out.println("LoanID | BookID | User | Issue | Due | Returned");
-                for (Loan l : loans.all()) System.out.printf("%d | %d | %s | %s | %s | %s%n", l.id, l.bookId, l.username, l.issueDate, l.dueDate, l.returnDate==null?"-":l.returnDate);
-            }
-        }
-
-        // ===== Main =====
-        public static void main(String[] args) {
-            CsvStore store = new CsvStore("data");
-            store.init();
-
-            BookService bookService = new BookService(store);
-            UserService userService = new UserService(store);
-            LoanService loanService = new LoanService(store, bookService);
-
-            ConsoleApp app = new ConsoleApp(userService, bookService, loanService);
-            app.run();
-        }
-    }
-
+package NamanDigital;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+    //Simple Library Management System
+
+    public class LibraryManagement {
+
+        // ===== Models =====
+        static class Book {
+            long id;
+            String title;
+            String author;
+            int totalCopies;
+            int availableCopies;
+
+            Book(long id, String title, String author, int totalCopies, int availableCopies) {
+                this.id = id;
+                this.title = title;
+                this.author = author;
+                this.totalCopies = totalCopies;
+                this.availableCopies = availableCopies;
+            }
+        }
+
+        static class User {
+            String username;
+            String passwordHash; // sha-256
+            String fullName;
+
+            User(String username, String passwordHash, String fullName) {
+                this.username = username;
+                this.passwordHash = passwordHash;
+                this.fullName = fullName;
+            }
+        }
+
+        // A loan is a thin view onto one row of a LoanTable; it carries no copy of the data beyond its id. The row of
+        // a returned loan is recycled once archived, so every read checks the row still holds this loan: a view kept
+        // past that reports the loan as returned and refuses to read the next loan's data.
+        static final class Loan {
+            final LoanTable table;
+            final int row;
+            private final long id;
+
+            Loan(LoanTable table, int row) { this(table, row, table.id(row)); }
+
+            Loan(LoanTable table, int row, long id) { this.table = table; this.row = row; this.id = id; }
+
+            long id() { return id; }
+            long bookId() { return current(table.bookId(row)); }
+            String username() { return table.names().name((int) current(table.userId(row))); }
+            LocalDate issueDate() { return LocalDate.ofEpochDay(current(table.issueDay(row))); }
+            LocalDate dueDate() { return LocalDate.ofEpochDay(current(table.dueDay(row))); }
+            LocalDate returnDate() { int d = (int) current(table.returnDay(row)); return d == LoanTable.NO_DATE ? null : LocalDate.ofEpochDay(d); } // null if not returned
+
+            boolean isReturned() { int d = table.returnDay(row); return table.id(row) != id || d != LoanTable.NO_DATE; }
+
+            // The value read from the row, if the row was still this loan's after reading it
+            private long current(long value) {
+                if (table.id(row) != id) throw new IllegalArgumentException("Loan " + id + " has been returned");
+                return value;
+            }
+        }
+
+        // A place in a book's waiting list. Once a returned copy is set aside for the holder, pickupBy is the last
+        // day they can borrow it on.
+        static class Hold {
+            long id;
+            long bookId;
+            String username;
+            LocalDate placed;
+            LocalDate pickupBy; // null while still waiting
+
+            Hold(long id, long bookId, String username, LocalDate placed, LocalDate pickupBy) {
+                this.id = id;
+                this.bookId = bookId;
+                this.username = username;
+                this.placed = placed;
+                this.pickupBy = pickupBy;
+            }
+
+            boolean isReady() { return pickupBy != null; }
+        }
+
+        // One page of a listing. next is an opaque cursor for the page after it, null on the last page. Pages are
+        // cut from ordered indexes by seeking just past the cursor's key, so a page costs O(log n + limit).
+        static final class Page<T> {
+            static final int MAX_LIMIT = 1000;
+            final List<T> items;
+            final String next;
+
+            Page(List<T> items, String next) { this.items = items; this.next = next; }
+
+            // Up to limit values of index after the given key (from the start when null)
+            static <K, V, T> Page<T> of(NavigableMap<K, V> index, K after, int limit, Function<K, String> keyText, Function<V, T> item) {
+                limit = clamp(limit);
+                List<T> out = new ArrayList<>(Math.min(limit, 64));
+                Iterator<Map.Entry<K, V>> it = (after == null ? index : index.tailMap(after, false)).entrySet().iterator();
+                K last = null;
+                while (out.size() < limit && it.hasNext()) {
+                    Map.Entry<K, V> e = it.next();
+                    T t = item.apply(e.getValue());
+                    if (t == null) continue; // gone since the index was read
+                    out.add(t);
+                    last = e.getKey();
+                }
+                return new Page<>(out, it.hasNext() && last != null ? cursor(keyText.apply(last)) : null);
+            }
+
+            static int clamp(int limit) {
+                if (limit < 1) throw new IllegalArgumentException("limit must be positive");
+                return Math.min(limit, MAX_LIMIT);
+            }
+
+            static String cursor(String key) { return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.UTF_8)); }
+
+            static String key(String cursor) {
+                try { return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8); }
+                catch (IllegalArgumentException e) { throw new IllegalArgumentException("Invalid cursor"); }
+            }
+
+            static long longKey(String cursor) {
+                try { return Long.parseLong(key(cursor)); }
+                catch (NumberFormatException e) { throw new IllegalArgumentException("Invalid cursor"); }
+            }
+        }
+
+        // ===== Loan storage (columnar) =====
+        // Loans are kept as parallel primitive columns: ids, book ids, interned user ids and epoch-day dates, about
+        // 32 bytes a row instead of a Loan object with a String and three LocalDates. Columns grow in fixed-size
+        // segments, so growth never copies existing rows and a live row never moves; removed rows are recycled for
+        // later inserts. Loan ids are handed out in increasing order, so lookups binary-search the id column; a hash
+        // index is only built once rows arrive out of order or get removed. Writers synchronize on the table; a
+        // reader only touches rows it learned about after they were published.
+        static final class LoanTable {
+            static final int NO_DATE = Integer.MIN_VALUE;
+            static final long FREE = 0L; // id of a removed row
+            private static final int SEG_BITS = 13, SEG = 1 << SEG_BITS, SEG_MASK = SEG - 1;
+
+            private final Names names;
+            private LongIntMap rows; // loan id -> row, only once ids stop being ascending
+            private volatile long[][] ids = new long[0][], bookIds = new long[0][];
+            private volatile int[][] users = new int[0][], issued = new int[0][], due = new int[0][], returned = new int[0][];
+            private volatile int size;  // high-water mark, including free rows
+            private int[] free = new int[0];
+            private int freeCount;
+            private long maxId;
+
+            LoanTable() { this(new Names()); }
+
+            LoanTable(Names names) { this.names = names; }
+
+            long id(int r) { return ids[r >>> SEG_BITS][r & SEG_MASK]; }
+            long bookId(int r) { return bookIds[r >>> SEG_BITS][r & SEG_MASK]; }
+            int userId(int r) { return users[r >>> SEG_BITS][r & SEG_MASK]; }
+            String username(int r) { return names.name(userId(r)); }
+            int issueDay(int r) { return issued[r >>> SEG_BITS][r & SEG_MASK]; }
+            int dueDay(int r) { return due[r >>> SEG_BITS][r & SEG_MASK]; }
+            int returnDay(int r) { return returned[r >>> SEG_BITS][r & SEG_MASK]; }
+
+            int size() { return size; }
+            synchronized int liveCount() { return size - freeCount; }
+            boolean live(int r) { return id(r) != FREE; }
+            synchronized long maxId() { return maxId; }
+            Names names() { return names; }
+
+            synchronized int rowOf(long id) {
+                if (rows != null) return rows.get(id);
+                int lo = 0, hi = size - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    long v = id(mid);
+                    if (v < id) lo = mid + 1; else if (v > id) hi = mid - 1; else return mid;
+                }
+                return -1;
+            }
+
+            Loan find(long id) { int r = rowOf(id); return r < 0 ? null : new Loan(this, r, id); }
+
+            Loan view(int r) { return new Loan(this, r); }
+
+            List<Loan> views() {
+                int n = size;
+                List<Loan> out = new ArrayList<>(n);
+                for (int r = 0; r < n; r++) if (live(r)) out.add(new Loan(this, r));
+                return out;
+            }
+
+            // Inserts a row, or overwrites the row already holding this loan id; returns the row
+            synchronized int put(long id, long bookId, String username, int issueDay, int dueDay, int returnDay) {
+                return putInterned(id, bookId, names.id(username), issueDay, dueDay, returnDay);
+            }
+
+            // Same as put, for a user id already interned in this table's names
+            synchronized int putInterned(long id, long bookId, int userId, int issueDay, int dueDay, int returnDay) {
+                int r = id > maxId || size == 0 ? -1 : rowOf(id);
+                if (r < 0) {
+                    if (freeCount > 0) r = free[--freeCount];
+                    else { r = size; if ((r & SEG_MASK) == 0) grow(); }
+                    if (rows == null && size > 0 && id < maxId) indexRows();
+                    if (rows != null) rows.put(id, r);
+                }
+                int s = r >>> SEG_BITS, i = r & SEG_MASK;
+                ids[s][i] = id; bookIds[s][i] = bookId; users[s][i] = userId;
+                issued[s][i] = issueDay; due[s][i] = dueDay; returned[s][i] = returnDay;
+                maxId = Math.max(maxId, id);
+                if (r == size) size = r + 1; // volatile write publishes the row
+                return r;
+            }
+
+            synchronized void setReturnDay(int r, int day) { returned[r >>> SEG_BITS][r & SEG_MASK] = day; }
+
+            // Frees the row for reuse; views onto it are no longer valid
+            synchronized void remove(int r) {
+                if (!live(r)) return;
+                if (rows == null) indexRows();
+                rows.remove(id(r));
+                ids[r >>> SEG_BITS][r & SEG_MASK] = FREE;
+                if (freeCount == free.length) free = Arrays.copyOf(free, Math.max(16, freeCount * 2));
+                free[freeCount++] = r;
+            }
+
+            private void indexRows() {
+                rows = new LongIntMap(size + 1);
+                for (int i = 0; i < size; i++) if (live(i)) rows.put(id(i), i);
+            }
+
+            private void grow() {
+                int n = ids.length + 1;
+                long[][] a = Arrays.copyOf(ids, n), b = Arrays.copyOf(bookIds, n);
+                int[][] u = Arrays.copyOf(users, n), is = Arrays.copyOf(issued, n), du = Arrays.copyOf(due, n), re = Arrays.copyOf(returned, n);
+                a[n - 1] = new long[SEG]; b[n - 1] = new long[SEG];
+                u[n - 1] = new int[SEG]; is[n - 1] = new int[SEG]; du[n - 1] = new int[SEG]; re[n - 1] = new int[SEG];
+                ids = a; bookIds = b; users = u; issued = is; due = du; returned = re;
+            }
+
+            // Rows of another table (e.g. one parsed CSV run) in order, as upserts
+            void putAll(LoanTable other) {
+                for (int r = 0, n = other.size(); r < n; r++)
+                    if (other.live(r)) put(other.id(r), other.bookId(r), other.username(r), other.issueDay(r), other.dueDay(r), other.returnDay(r));
+            }
+
+            // Point-in-time copy sharing the name table
+            synchronized LoanTable copy() {
+                LoanTable t = new LoanTable(names);
+                t.putAll(this);
+                return t;
+            }
+
+            // Copy of the rows whose book id passes the test, e.g. one shard's loans
+            synchronized LoanTable where(LongPredicate book) {
+                LoanTable t = new LoanTable(names);
+                for (int r = 0; r < size; r++) if (live(r) && book.test(bookId(r))) t.putInterned(id(r), bookId(r), userId(r), issueDay(r), dueDay(r), returnDay(r));
+                return t;
+            }
+
+            // One record from the bulk loader: id,bookId,username,issueDate,dueDate[,returnDate]
+            void putRow(CsvLoader.Fields f) {
+                long id = f.number(), bookId = f.number();
+                String user = f.text();
+                int issue = (int) f.epochDay(), dueDay = (int) f.epochDay();
+                put(id, bookId, user, issue, dueDay, f.emptyField() ? NO_DATE : (int) f.epochDay());
+            }
+        }
+
+        // Interns repeated strings, such as usernames on loans, as dense int ids
+        static final class Names {
+            private final Map<String, Integer> ids = new HashMap<>();
+            private volatile String[] names = new String[64];
+            private int size;
+
+            synchronized int id(String s) {
+                Integer id = ids.get(s);
+                if (id != null) return id;
+                String[] a = names;
+                if (size == a.length) a = Arrays.copyOf(a, size * 2);
+                a[size] = s;
+                names = a;
+                ids.put(s, size);
+                return size++;
+            }
+
+            String name(int id) { return names[id]; }
+
+            synchronized int lookup(String s) { Integer id = ids.get(s); return id == null ? -1 : id; }
+        }
+
+        // Open-addressing long -> int map without boxing; absent keys read as -1
+        static final class LongIntMap {
+            private static final long EMPTY = Long.MIN_VALUE;
+            private long[] keys;
+            private int[] vals;
+            private int size;
+
+            LongIntMap() { this(16); }
+
+            LongIntMap(int capacity) {
+                int cap = Integer.highestOneBit(Math.max(4, capacity * 2 - 1)) << 1;
+                keys = new long[cap]; vals = new int[cap];
+                Arrays.fill(keys, EMPTY);
+            }
+
+            int size() { return size; }
+
+            int get(long k) {
+                int mask = keys.length - 1;
+                for (int i = mix(k) & mask; ; i = (i + 1) & mask) {
+                    if (keys[i] == k) return vals[i];
+                    if (keys[i] == EMPTY) return -1;
+                }
+            }
+
+            void put(long k, int v) {
+                if ((size + 1) * 2 > keys.length) rehash(keys.length * 2);
+                int mask = keys.length - 1;
+                for (int i = mix(k) & mask; ; i = (i + 1) & mask) {
+                    if (keys[i] == k) { vals[i] = v; return; }
+                    if (keys[i] == EMPTY) { keys[i] = k; vals[i] = v; size++; return; }
+                }
+            }
+
+            // Backward-shift deletion keeps probe chains intact without tombstones
+            void remove(long k) {
+                int mask = keys.length - 1;
+                int i = mix(k) & mask;
+                while (keys[i] != k) { if (keys[i] == EMPTY) return; i = (i + 1) & mask; }
+                size--;
+                for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                    int home = mix(keys[j]) & mask;
+                    if (((j - home) & mask) >= ((j - i) & mask)) { keys[i] = keys[j]; vals[i] = vals[j]; i = j; }
+                }
+                keys[i] = EMPTY;
+            }
+
+            private void rehash(int cap) {
+                long[] ok = keys; int[] ov = vals;
+                keys = new long[cap]; vals = new int[cap];
+                Arrays.fill(keys, EMPTY);
+                size = 0;
+                for (int i = 0; i < ok.length; i++) if (ok[i] != EMPTY) put(ok[i], ov[i]);
+            }
+
+            private static int mix(long k) { long h = k * 0x9E3779B97F4A7C15L; return (int) (h ^ (h >>> 32)); }
+        }
+
+        // ===== Storage (CSV) =====
+        // In sharded mode the base directory keeps users, the id sequences and the loan archive, and books, loans and
+        // holds are partitioned by book id over shard-<n>/ subdirectories. Each shard is a CsvStore of its own with
+        // its own journal, writer thread, lock and compactor; the base store routes every change to the shard of its
+        // book, and loads and saves all shards in parallel.
+        static class CsvStore {
+            private final Path dir;
+            private final Path booksCsv;
+            private final Path usersCsv;
+            private final Path loansCsv;
+            private final Path holdsCsv;
+            private final Path snapshotBin;
+            private final IdSequence bookIds;
+            private final IdSequence holdIds;
+            private final IdSequence loanIds;
+            private Snapshot boot; // read once at startup; the book and loan sections are handed out a single time
+            private boolean bootRead;
+            private static final DateTimeFormatter DF = DateTimeFormatter.ISO_LOCAL_DATE;
+            private final LoanArchive archive;
+            private final Journal journal; // null = legacy mode, every mutation rewrites the whole CSV
+            private final AtomicBoolean compacting = new AtomicBoolean();
+            private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> { Thread t = new Thread(r, "csv-compactor"); t.setDaemon(true); return t; });
+            private Supplier<List<Book>> bookSource;
+            private Supplier<List<User>> userSource;
+            private Supplier<LoanTable> loanSource;
+            private Supplier<List<Hold>> holdSource;
+            private volatile ReplicationSource shipper; // replicas following this store, if any
+            private final CsvStore[] shards; // null unless sharded
+            private final boolean shard; // one of another store's shards: no users of its own
+
+            CsvStore(String base) { this(base, true); }
+
+            CsvStore(String base, boolean journaled) { this(base, journaled, Journal.Durability.GROUP, Journal.DEFAULT_GROUP_MILLIS); }
+
+            CsvStore(String base, boolean journaled, Journal.Durability durability, long groupMillis) { this(base, journaled, durability, groupMillis, 0); }
+
+            // shardCount > 0 partitions books, loans and holds over that many shard directories; a directory keeps
+            // the shard count it was first opened with
+            CsvStore(String base, boolean journaled, Journal.Durability durability, long groupMillis, int shardCount) {
+                this(Paths.get(base), journaled, durability, groupMillis, null, shardCount);
+                for (int i = 0; i < shardCount; i++) shards[i] = new CsvStore(dir.resolve("shard-" + i), journaled, durability, groupMillis, archive, 0);
+            }
+
+            private CsvStore(Path dir, boolean journaled, Journal.Durability durability, long groupMillis, LoanArchive sharedArchive, int shardCount) {
+                if (shardCount < 0) throw new IllegalArgumentException("Shard count must not be negative");
+                this.dir = dir;
+                this.booksCsv = dir.resolve("books.csv");
+                this.usersCsv = dir.resolve("users.csv");
+                this.loansCsv = dir.resolve("loans.csv");
+                this.holdsCsv = dir.resolve("holds.csv");
+                this.snapshotBin = dir.resolve("snapshot.bin");
+                this.bookIds = new IdSequence(dir.resolve("books.seq"));
+                this.holdIds = new IdSequence(dir.resolve("holds.seq"));
+                this.loanIds = new IdSequence(dir.resolve("loans.seq"));
+                this.archive = sharedArchive != null ? sharedArchive : new LoanArchive(dir.resolve("archive"));
+                this.journal = journaled ? new Journal(dir, Journal.DEFAULT_COMPACT_BYTES, durability, groupMillis) : null;
+                this.shard = sharedArchive != null;
+                this.shards = shardCount > 0 ? new CsvStore[shardCount] : null;
+            }
+
+            void init() {
+                try {
+                    if (!Files.exists(dir)) Files.createDirectories(dir);
+                    if (!Files.exists(booksCsv)) Files.write(booksCsv, Collections.singletonList("id,title,author,total,available"), StandardCharsets.UTF_8);
+                    if (!Files.exists(usersCsv)) Files.write(usersCsv, Collections.singletonList("username,passwordHash,fullName"), StandardCharsets.UTF_8);
+                    if (!Files.exists(loansCsv)) Files.write(loansCsv, Collections.singletonList("id,bookId,username,issueDate,dueDate,returnDate"), StandardCharsets.UTF_8);
+                    if (!Files.exists(holdsCsv)) Files.write(holdsCsv, Collections.singletonList("id,bookId,username,placed,pickupBy"), StandardCharsets.UTF_8);
+                    if (!shard) archive.init();
+                    if (journal != null) journal.open();
+                    if (shards != null) openShards();
+                    else if (!shard && Files.exists(dir.resolve("shards"))) throw new IllegalStateException(dir + " is sharded, start with --shards");
+                    if (shard) return;
+                    // ensure default admin exists
+                    List<User> us = loadUsers();
+                    boolean hasAdmin = us.stream().anyMatch(u -> u.username.equals("admin"));
+                    if (!hasAdmin) {
+                        User admin = new User("admin", Security.sha256Hex("admin123"), "Administrator");
+                        if (journal != null) Journal.await(journal.append("U," + userRow(admin))); // replayed right after, so wait for the writer
+                        else try (BufferedWriter bw = Files.newBufferedWriter(usersCsv, StandardCharsets.UTF_8, StandardOpenOption.APPEND)) {
+                            bw.write(userRow(admin) + "\n");
+                        }
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            // The directory keeps the shard count it was first opened with. The first sharded start on an unsharded
+            // directory hands its books, loans and holds over to the shards; the count is recorded before the base
+            // files are emptied, so an interrupted split is simply redone.
+            private void openShards() throws IOException {
+                for (CsvStore s : shards) s.init();
+                Path marker = dir.resolve("shards");
+                if (Files.exists(marker)) {
+                    int n = Integer.parseInt(new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim());
+                    if (n != shards.length) throw new IllegalStateException(dir + " is split into " + n + " shards, not " + shards.length);
+                    return;
+                }
+                List<Book> bs = readBooks();
+                LoanTable ls = readLoans();
+                List<Hold> hs = readHolds();
+                for (int i = 0; i < shards.length; i++) {
+                    int k = i;
+                    shards[i].saveBooks(bs.stream().filter(b -> shardOf(b.id) == k).collect(Collectors.toList()));
+                    shards[i].saveLoans(ls.where(book -> shardOf(book) == k));
+                    shards[i].saveHolds(hs.stream().filter(h -> shardOf(h.bookId) == k).collect(Collectors.toList()));
+                }
+                writeAtomically(marker, Collections.singletonList(String.valueOf(shards.length)));
+                writeAtomically(booksCsv, Collections.singletonList("id,title,author,total,available"));
+                writeAtomically(loansCsv, Collections.singletonList("id,bookId,username,issueDate,dueDate,returnDate"));
+                writeAtomically(holdsCsv, Collections.singletonList("id,bookId,username,placed,pickupBy"));
+            }
+
+            private int shardOf(long bookId) { return Math.floorMod(Long.hashCode(bookId), shards.length); }
+
+            private CsvStore shardFor(long bookId) { return shards[shardOf(bookId)]; }
+
+            private <T> List<T> eachShard(Function<CsvStore, T> f) { return Arrays.stream(shards).parallel().map(f).collect(Collectors.toList()); }
+
+            private void forEachShard(IntConsumer f) { IntStream.range(0, shards.length).parallel().forEach(f); }
+
+            private <T> List<List<T>> partition(Collection<T> items, ToLongFunction<T> bookId) {
+                List<List<T>> parts = new ArrayList<>();
+                for (int i = 0; i < shards.length; i++) parts.add(new ArrayList<>());
+                for (T t : items) parts.get(shardOf(bookId.applyAsLong(t))).add(t);
+                return parts;
+            }
+
+            private static CompletableFuture<Void> all(List<CompletableFuture<Void>> fs) { return CompletableFuture.allOf(fs.toArray(new CompletableFuture<?>[0])); }
+
+            // Services hand over a view of their state; used for legacy full rewrites and for journal compaction.
+            // Shards get the part of each view that is theirs, and no users.
+            void bindBooks(Supplier<List<Book>> src) {
+                bookSource = src;
+                if (shards != null) for (int i = 0; i < shards.length; i++) { int k = i; shards[i].bindBooks(() -> partition(src.get(), b -> b.id).get(k)); }
+            }
+            void bindUsers(Supplier<List<User>> src) {
+                userSource = src;
+                if (shards != null) for (CsvStore s : shards) s.bindUsers(Collections::emptyList);
+            }
+            void bindLoans(Supplier<LoanTable> src) {
+                loanSource = src;
+                if (shards != null) for (int i = 0; i < shards.length; i++) { int k = i; shards[i].bindLoans(() -> src.get().where(book -> shardOf(book) == k)); }
+            }
+            void bindHolds(Supplier<List<Hold>> src) {
+                holdSource = src;
+                if (shards != null) for (int i = 0; i < shards.length; i++) { int k = i; shards[i].bindHolds(() -> partition(src.get(), h -> h.bookId).get(k)); }
+            }
+
+            // Mutations: a single queued journal record in journaled mode, otherwise a rewrite of the affected CSV.
+            // Each returns a future that completes once the change is durable under the journal's durability mode;
+            // in SYNC and legacy mode that has already happened by the time the call returns.
+            CompletableFuture<Void> putBook(Book b) { return shards != null ? shardFor(b.id).putBook(b) : journal == null ? rewrite(() -> saveBooks(bookSource.get())) : log("B," + bookRow(b)); }
+            // A whole import batch: queued together so it shares one write and fsync, or a single rewrite
+            // New books not yet visible in the book source; a legacy rewrite writes them along with it
+            CompletableFuture<Void> putBooks(List<Book> batch) {
+                if (shards != null) {
+                    List<List<Book>> parts = partition(batch, b -> b.id);
+                    List<CompletableFuture<Void>> fs = new ArrayList<>();
+                    for (int i = 0; i < shards.length; i++) if (!parts.get(i).isEmpty()) fs.add(shards[i].putBooks(parts.get(i)));
+                    return all(fs);
+                }
+                if (journal == null) return rewrite(() -> { List<Book> all = new ArrayList<>(bookSource.get()); all.addAll(batch); saveBooks(all); });
+                List<String> records = new ArrayList<>(batch.size());
+                for (Book b : batch) records.add("B," + bookRow(b));
+                return log(records);
+            }
+            CompletableFuture<Void> removeBook(long id) { return shards != null ? shardFor(id).removeBook(id) : journal == null ? rewrite(() -> saveBooks(bookSource.get())) : log("b," + id); }
+            CompletableFuture<Void> putUser(User u) { return journal == null ? rewrite(() -> saveUsers(userSource.get())) : log("U," + userRow(u)); }
+            CompletableFuture<Void> removeUser(String username) { return journal == null ? rewrite(() -> saveUsers(userSource.get())) : log("u," + esc(username)); }
+            CompletableFuture<Void> putLoan(Loan l) {
+                if (shards != null) return shardFor(l.bookId()).putLoan(l);
+                if (l.isReturned()) archive.append(l.table, l.row); // archived before it is logged, so a logged return is always in the archive
+                return journal == null ? rewrite(() -> saveLoans(loanSource.get())) : log("L," + loanRow(l.table, l.row));
+            }
+            CompletableFuture<Void> putHold(Hold h) { return shards != null ? shardFor(h.bookId).putHold(h) : journal == null ? rewrite(() -> saveHolds(holdSource.get())) : log("H," + holdRow(h)); }
+            CompletableFuture<Void> removeHold(Hold h) { return shards != null ? shardFor(h.bookId).removeHold(h) : journal == null ? rewrite(() -> saveHolds(holdSource.get())) : log("h," + h.id); }
+
+            // Streams every journal record from now on to the source's replicas; requires journaled mode
+            void shipTo(ReplicationSource source) {
+                if (journal == null) throw new IllegalStateException("Replication needs the journal");
+                shipper = source;
+                if (shards != null) for (CsvStore s : shards) s.shipTo(source);
+            }
+
+            // The current state as journal records, in load order (books, users, loans, holds): a replica's starting point
+            List<String> records() {
+                List<String> out = new ArrayList<>();
+                for (Book b : bookSource.get()) out.add("B," + bookRow(b));
+                for (User u : userSource.get()) out.add("U," + userRow(u));
+                LoanTable ls = loanSource.get();
+                for (int r = 0, n = ls.size(); r < n; r++) if (ls.live(r)) out.add("L," + loanRow(ls, r));
+                for (Hold h : holdSource.get()) out.add("H," + holdRow(h));
+                return out;
+            }
+
+            // Completes once every change made so far is durable
+            CompletableFuture<Void> whenDurable() {
+                CompletableFuture<Void> own = journal == null ? Journal.DONE : journal.whenDurable();
+                if (shards == null) return own;
+                List<CompletableFuture<Void>> fs = new ArrayList<>(eachShard(CsvStore::whenDurable));
+                fs.add(own);
+                return all(fs);
+            }
+
+            LoanArchive archive() { return archive; }
+            IdSequence bookIds() { return bookIds; }
+            IdSequence holdIds() { return holdIds; }
+            IdSequence loanIds() { return loanIds; }
+
+            // Synchronized so concurrent legacy rewrites never interleave or land out of order
+            private synchronized CompletableFuture<Void> rewrite(Runnable save) { save.run(); return Journal.DONE; }
+
+            // A change groups the records of one service operation, e.g. a loan with its book's availability: while one
+            // is open on this thread log() only collects records, and the outermost endChange() queues each store's
+            // records as a single batch, still under the caller's locks. A crash can then never keep one without the
+            // other, and a SYNC caller waits for one commit with settle() once it has released its locks.
+            private static final ThreadLocal<Change> CHANGE = new ThreadLocal<>();
+
+            private static final class Change {
+                int depth;
+                final Map<CsvStore, List<String>> records = new LinkedHashMap<>();
+                final CompletableFuture<Void> durable = new CompletableFuture<>();
+            }
+
+            void beginChange() {
+                Change c = CHANGE.get();
+                if (c == null) CHANGE.set(c = new Change());
+                c.depth++;
+            }
+
+            CompletableFuture<Void> endChange() {
+                Change c = CHANGE.get();
+                if (--c.depth > 0) return Journal.DONE; // the outermost change is the one waited for
+                CHANGE.remove();
+                List<CompletableFuture<Void>> fs = new ArrayList<>();
+                c.records.forEach((store, records) -> fs.add(store.queue(records)));
+                all(fs).whenComplete((v, e) -> { if (e == null) c.durable.complete(null); else c.durable.completeExceptionally(e); });
+                return c.durable;
+            }
+
+            // Waits for a change in SYNC mode, where a mutation returns only once it is durable
+            void settle(CompletableFuture<Void> durable) {
+                if (journal != null && journal.durability == Journal.Durability.SYNC) Journal.await(durable);
+            }
+
+            // Only the enqueue is under the store lock; a SYNC caller waits for its commit outside it, so commits
+            // from callers on other books are coalesced into the same write and fsync. Callers holding a book's lock
+            // go through BookService.change, so they wait outside that lock too.
+            private CompletableFuture<Void> log(String record) { return log(Collections.singletonList(record)); }
+
+            private CompletableFuture<Void> log(List<String> records) {
+                Change c = CHANGE.get();
+                if (c != null) {
+                    c.records.computeIfAbsent(this, s -> new ArrayList<>()).addAll(records);
+                    return c.durable;
+                }
+                CompletableFuture<Void> durable = queue(records);
+                if (journal.durability == Journal.Durability.SYNC) Journal.await(durable);
+                return durable;
+            }
+
+            private CompletableFuture<Void> queue(List<String> records) {
+                CompletableFuture<Void> durable;
+                synchronized (this) {
+                    durable = journal.append(records);
+                    ReplicationSource r = shipper;
+                    if (r != null) r.ship(records);
+                    if (journal.full() && compacting.compareAndSet(false, true)) compact();
+                }
+                return durable;
+            }
+
+            // Seal the active log first, then take the in-memory state: every sealed record is already reflected in
+            // that state, so the sealed segments can go once the CSVs have been replaced.
+            private Future<?> compact() {
+                if (bookSource == null || userSource == null || loanSource == null || holdSource == null) { compacting.set(false); return CompletableFuture.completedFuture(null); }
+                int sealed = journal.seal();
+                List<Book> bs = shards == null ? bookSource.get() : Collections.emptyList();
+                List<User> us = userSource.get();
+                LoanTable ls = shards == null ? loanSource.get() : new LoanTable();
+                List<Hold> hs = shards == null ? holdSource.get() : Collections.emptyList();
+                return compactor.submit(() -> {
+                    long t0 = System.nanoTime();
+                    try {
+                        // CSVs first: they stay at least as new as the snapshot, so either one is a safe base. Holds
+                        // are not in the snapshot; holds.csv is always their base. A sharded base store only keeps users.
+                        if (shards == null) { saveBooks(bs); saveLoans(ls); saveHolds(hs); }
+                        saveUsers(us);
+                        long t1 = System.nanoTime();
+                        Metrics.SNAPSHOT_WRITE.record(t1, Snapshot.write(snapshotBin, bs, us, ls, sealed));
+                        journal.dropSealed(sealed);
+                        return null;
+                    } catch (IOException | RuntimeException e) {
+                        Metrics.COMPACT.error();
+                        System.err.println("Journal compaction failed: " + e.getMessage());
+                        throw e; // for checkpoint; a background compaction has nobody waiting and is retried when the log is full again
+                    } finally { compacting.set(false); Metrics.COMPACT.record(t0); }
+                });
+            }
+
+            // Folds the journal into fresh CSVs and a binary snapshot and waits for it; used on shutdown
+            void checkpoint() {
+                if (shards != null) forEachShard(i -> shards[i].checkpoint());
+                if (journal == null) return;
+                journal.flush(); // committed even where there is nothing to compact into
+                if (journal.isEmpty()) return;
+                Future<?> done;
+                synchronized (this) {
+                    while (!compacting.compareAndSet(false, true)) Thread.onSpinWait();
+                    done = compact();
+                }
+                try { done.get(); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                catch (ExecutionException e) { throw new IllegalStateException("Checkpoint failed, the journal is kept", e.getCause()); }
+            }
+
+            // The boot snapshot, if journaled and a valid one exists; a damaged snapshot is reported and the CSVs are
+            // used instead
+            private synchronized Snapshot boot() {
+                if (!bootRead && journal != null && Files.exists(snapshotBin)) {
+                    long t0 = System.nanoTime();
+                    try { boot = Snapshot.read(snapshotBin); Metrics.SNAPSHOT_READ.record(t0); }
+                    catch (IOException e) { Metrics.SNAPSHOT_READ.error(); System.err.println("Ignoring snapshot, loading CSVs: " + e.getMessage()); }
+                }
+                bootRead = true;
+                return boot;
+            }
+
+            // Books
+            List<Book> loadBooks() {
+                if (shards != null) return eachShard(CsvStore::loadBooks).stream().flatMap(List::stream).collect(Collectors.toList());
+                return readBooks();
+            }
+
+            private List<Book> readBooks() {
+                long t0 = System.nanoTime();
+                Map<Long, Book> byId = new LinkedHashMap<>();
+                Snapshot s = boot();
+                int after = 0;
+                if (s != null && s.books != null) { for (Book b : s.books) byId.put(b.id, b); after = s.journalSeq; s.books = null; }
+                else for (Book b : CsvLoader.load(booksCsv, true, f -> new Book(f.number(), f.text(), f.text(), f.integer(), f.integer()))) byId.put(b.id, b);
+                if (journal != null) journal.replay(after, p -> {
+                    if (p[0].equals("B")) { Book b = parseBook(p, 1); byId.put(b.id, b); }
+                    else if (p[0].equals("b")) byId.remove(Long.parseLong(p[1]));
+                });
+                Metrics.LOAD_BOOKS.record(t0);
+                return new ArrayList<>(byId.values());
+            }
+
+            void saveBooks(List<Book> books) {
+                if (shards != null) { List<List<Book>> parts = partition(books, b -> b.id); forEachShard(i -> shards[i].saveBooks(parts.get(i))); return; }
+                long t0 = System.nanoTime();
+                List<String> lines = new ArrayList<>();
+                lines.add("id,title,author,total,available");
+                for (Book b : books) lines.add(bookRow(b));
+                Metrics.SAVE_BOOKS.record(t0, writeAtomically(booksCsv, lines));
+            }
+
+            Book parseBook(String[] p, int o) {
+                long id = Long.parseLong(p[o]);
+                String title = p[o+1];
+                String author = p[o+2];
+                int total = Integer.parseInt(p[o+3]);
+                int avail = Integer.parseInt(p[o+4]);
+                return new Book(id, title, author, total, avail);
+            }
+
+            private String bookRow(Book b) { return String.join(",", String.valueOf(b.id), esc(b.title), esc(b.author), String.valueOf(b.totalCopies), String.valueOf(b.availableCopies)); }
+
+            // Users
+            List<User> loadUsers() {
+                long t0 = System.nanoTime();
+                Map<String, User> byName = new LinkedHashMap<>();
+                Snapshot s = boot();
+                int after = 0;
+                if (s != null) { for (User u : s.users) byName.put(u.username, u); after = s.journalSeq; } // kept: init() reads users too
+                else for (User u : CsvLoader.load(usersCsv, true, f -> new User(f.text(), f.text(), f.hasField() ? f.text() : ""))) byName.put(u.username, u);
+                if (journal != null) journal.replay(after, p -> {
+                    if (p[0].equals("U")) { User u = parseUser(p, 1); byName.put(u.username, u); }
+                    else if (p[0].equals("u")) byName.remove(p[1]);
+                });
+                Metrics.LOAD_USERS.record(t0);
+                return new ArrayList<>(byName.values());
+            }
+
+            void saveUsers(List<User> users) {
+                long t0 = System.nanoTime();
+                List<String> lines = new ArrayList<>();
+                lines.add("username,passwordHash,fullName");
+                for (User u : users) lines.add(userRow(u));
+                Metrics.SAVE_USERS.record(t0, writeAtomically(usersCsv, lines));
+            }
+
+            User parseUser(String[] p, int o) { return new User(p[o], p[o+1], p.length>o+2?p[o+2]:""); }
+
+            private String userRow(User u) { return esc(u.username) + "," + u.passwordHash + "," + esc(u.fullName); }
+
+            // Loans
+            // Only active loans: returned ones found in the snapshot or the log are moved to (or already are in) the
+            // archive. A snapshot still holding returned loans, e.g. from before the archive existed, is rewritten.
+            LoanTable loadLoans() {
+                if (shards == null) return readLoans();
+                LoanTable all = new LoanTable();
+                for (LoanTable t : eachShard(CsvStore::loadLoans)) all.putAll(t);
+                return all;
+            }
+
+            private LoanTable readLoans() {
+                long t0 = System.nanoTime();
+                LoanTable loans;
+                Snapshot s = boot();
+                int after = 0;
+                boolean csvHasReturned = false; // loans.csv from before the archive still lists returned loans
+                if (s != null && s.loans != null) { loans = s.loans; after = s.journalSeq; s.loans = null; }
+                else {
+                    loans = new LoanTable();
+                    for (LoanTable run : CsvLoader.loadRuns(loansCsv, true, LoanTable::new, LoanTable::putRow)) loans.putAll(run);
+                    for (int r = 0, n = loans.size(); r < n && !csvHasReturned; r++) csvHasReturned = loans.returnDay(r) != LoanTable.NO_DATE;
+                }
+                if (journal != null) journal.replay(after, p -> {
+                    if (p[0].equals("L")) parseLoan(p, 1, loans);
+                });
+                archive.appendMissing(loans);
+                LoanTable active = new LoanTable(loans.names());
+                for (int r = 0, n = loans.size(); r < n; r++)
+                    if (loans.live(r) && loans.returnDay(r) == LoanTable.NO_DATE) active.put(loans.id(r), loans.bookId(r), loans.username(r), loans.issueDay(r), loans.dueDay(r), LoanTable.NO_DATE);
+                if (csvHasReturned) saveLoans(active);
+                Metrics.LOAD_LOANS.record(t0);
+                return active;
+            }
+
+            void saveLoans(LoanTable loans) {
+                if (shards != null) { forEachShard(i -> shards[i].saveLoans(loans.where(book -> shardOf(book) == i))); return; }
+                long t0 = System.nanoTime();
+                List<String> lines = new ArrayList<>();
+                lines.add("id,bookId,username,issueDate,dueDate,returnDate");
+                for (int r = 0, n = loans.size(); r < n; r++) if (loans.live(r)) lines.add(loanRow(loans, r));
+                Metrics.SAVE_LOANS.record(t0, writeAtomically(loansCsv, lines));
+            }
+
+            // Holds, in id order, which is also each book's waiting order
+            List<Hold> loadHolds() {
+                if (shards == null) return readHolds();
+                return eachShard(CsvStore::loadHolds).stream().flatMap(List::stream).sorted(Comparator.comparingLong(h -> h.id)).collect(Collectors.toList());
+            }
+
+            private List<Hold> readHolds() {
+                long t0 = System.nanoTime();
+                Map<Long, Hold> byId = new TreeMap<>();
+                for (Hold h : CsvLoader.load(holdsCsv, true, f -> new Hold(f.number(), f.number(), f.text(), LocalDate.ofEpochDay(f.epochDay()), f.emptyField() ? null : LocalDate.ofEpochDay(f.epochDay()))))
+                    byId.put(h.id, h);
+                Snapshot s = boot();
+                if (journal != null) journal.replay(s != null ? s.journalSeq : 0, p -> {
+                    if (p[0].equals("H")) { Hold h = parseHold(p, 1); byId.put(h.id, h); }
+                    else if (p[0].equals("h")) byId.remove(Long.parseLong(p[1]));
+                });
+                Metrics.LOAD_HOLDS.record(t0);
+                return new ArrayList<>(byId.values());
+            }
+
+            void saveHolds(List<Hold> holds) {
+                if (shards != null) { List<List<Hold>> parts = partition(holds, h -> h.bookId); forEachShard(i -> shards[i].saveHolds(parts.get(i))); return; }
+                long t0 = System.nanoTime();
+                List<String> lines = new ArrayList<>();
+                lines.add("id,bookId,username,placed,pickupBy");
+                for (Hold h : holds) lines.add(holdRow(h));
+                Metrics.SAVE_HOLDS.record(t0, writeAtomically(holdsCsv, lines));
+            }
+
+            Hold parseHold(String[] p, int o) {
+                LocalDate pickupBy = p.length>o+4 && !p[o+4].isEmpty() ? LocalDate.parse(p[o+4], DF) : null;
+                return new Hold(Long.parseLong(p[o]), Long.parseLong(p[o+1]), p[o+2], LocalDate.parse(p[o+3], DF), pickupBy);
+            }
+
+            private String holdRow(Hold h) { return String.join(",", String.valueOf(h.id), String.valueOf(h.bookId), esc(h.username), h.placed.format(DF), h.pickupBy==null?"":h.pickupBy.format(DF)); }
+
+            // Fines
+            void saveFines(LocalDate asOf, Map<String, Double> fines) {
+                long t0 = System.nanoTime();
+                List<String> lines = new ArrayList<>();
+                lines.add("username,fine");
+                fines.forEach((u, f) -> lines.add(esc(u) + "," + String.format(Locale.ROOT, "%.2f", f)));
+                try { Files.createDirectories(dir.resolve("fines")); } catch (IOException e) { throw new RuntimeException(e); }
+                Metrics.SAVE_FINES.record(t0, writeAtomically(dir.resolve("fines").resolve("fines-" + asOf + ".csv"), lines));
+            }
+
+            void parseLoan(String[] p, int o, LoanTable into) {
+                long id = Long.parseLong(p[o]);
+                long bookId = Long.parseLong(p[o+1]);
+                String username = p[o+2];
+                int issue = (int) LocalDate.parse(p[o+3], DF).toEpochDay();
+                int due = (int) LocalDate.parse(p[o+4], DF).toEpochDay();
+                int ret = p.length>o+5 && !p[o+5].isEmpty() ? (int) LocalDate.parse(p[o+5], DF).toEpochDay() : LoanTable.NO_DATE;
+                into.put(id, bookId, username, issue, due, ret);
+            }
+
+            static String loanRow(LoanTable t, int r) {
+                int ret = t.returnDay(r);
+                return String.join(",", String.valueOf(t.id(r)), String.valueOf(t.bookId(r)), esc(t.username(r)), LocalDate.ofEpochDay(t.issueDay(r)).format(DF),
+                        LocalDate.ofEpochDay(t.dueDay(r)).format(DF), ret==LoanTable.NO_DATE?"":LocalDate.ofEpochDay(ret).format(DF));
+            }
+
+            // Write to a sibling temp file and rename, so a crash never leaves a half-written CSV behind; returns the size
+            static long writeAtomically(Path target, List<String> lines) {
+                Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+                try {
+                    Files.write(tmp, lines, StandardCharsets.UTF_8);
+                    long size = Files.size(tmp);
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return size;
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            // CSV helpers
+            static String esc(String s) {
+                if (s == null) return "";
+                boolean need = s.contains(",") || s.contains("\"") || s.contains("\n") || s.contains("\r");
+                String t = s.replace("\"", "\"\"");
+                return need ? "\"" + t + "\"" : t;
+            }
+
+            static String[] splitCsv(String line) {
+                List<String> parts = new ArrayList<>();
+                StringBuilder cur = new StringBuilder();
+                boolean inQ = false;
+                for (int i=0;i<line.length();i++) {
+                    char c = line.charAt(i);
+                    if (inQ) {
+                        if (c=='"') {
+                            if (i+1<line.length() && line.charAt(i+1)=='"') { cur.append('"'); i++; }
+                            else inQ = false;
+                        } else cur.append(c);
+                    } else {
+                        if (c=='"') inQ = true;
+                        else if (c==',') { parts.add(cur.toString()); cur.setLength(0); }
+                        else cur.append(c);
+                    }
+                }
+                parts.add(cur.toString());
+                return parts.toArray(new String[0]);
+            }
+        }
+
+        // ===== Bulk CSV loader =====
+        // Cuts a file into ~4 MiB runs of whole records (a newline inside a quoted field is not a boundary), maps
+        // each run and parses the runs in parallel on the common fork-join pool. Numbers and dates are decoded
+        // straight from the mapped bytes; only text fields that a row keeps become Strings.
+        static class CsvLoader {
+            static final int RUN_BYTES = 4 << 20;
+
+            interface RowParser<T> { T parse(Fields f); }
+
+            static <T> List<T> load(Path file, boolean header, RowParser<T> parser) {
+                List<List<T>> runs = loadRuns(file, header, ArrayList::new, (out, f) -> out.add(parser.parse(f)));
+                List<T> out = new ArrayList<>(runs.stream().mapToInt(List::size).sum());
+                for (List<T> r : runs) out.addAll(r);
+                return out;
+            }
+
+            // One accumulator per run, in file order; lets callers collect straight into their own structures
+            static <A> List<A> loadRuns(Path file, boolean header, Supplier<A> perRun, BiConsumer<A, Fields> row) { return loadRuns(file, Long.MAX_VALUE, header, perRun, row); }
+
+            // Only the first limit bytes, which must end on a record boundary; for files still being appended to
+            static <A> List<A> loadRuns(Path file, long limit, boolean header, Supplier<A> perRun, BiConsumer<A, Fields> row) {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long[] bounds = boundaries(ch, Math.min(ch.size(), limit), RUN_BYTES);
+                    return IntStream.range(0, bounds.length - 1).parallel()
+                            .mapToObj(i -> parseRun(ch, bounds[i], bounds[i + 1], header && i == 0, perRun.get(), row))
+                            .collect(Collectors.toList());
+                } catch (IOException e) { throw new UncheckedIOException(e); }
+            }
+
+            // Offsets just past record-ending newlines, roughly every runBytes, tracking quote parity from the start
+            static long[] boundaries(FileChannel ch, long size, int runBytes) throws IOException {
+                List<Long> cuts = new ArrayList<>();
+                cuts.add(0L);
+                ByteBuffer buf = ByteBuffer.allocate(1 << 20);
+                byte[] a = buf.array();
+                boolean inQ = false;
+                long base = 0, next = runBytes;
+                while (base < size) {
+                    buf.clear();
+                    buf.limit((int) Math.min(buf.capacity(), size - base));
+                    int n = ch.read(buf, base);
+                    if (n <= 0) break;
+                    for (int i = 0; i < n; i++) {
+                        byte c = a[i];
+                        if (c == '"') inQ = !inQ;
+                        else if (c == '\n' && !inQ && base + i + 1 >= next) { cuts.add(base + i + 1); next = base + i + 1 + runBytes; }
+                    }
+                    base += n;
+                }
+                if (cuts.get(cuts.size() - 1) < size) cuts.add(size);
+                return cuts.stream().mapToLong(Long::longValue).toArray();
+            }
+
+            private static <A> A parseRun(FileChannel ch, long start, long end, boolean skipHeader, A out, BiConsumer<A, Fields> row) {
+                try {
+                    Fields f = new Fields(ch.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                    if (skipHeader) f.endRecord();
+                    while (f.nextRecord()) {
+                        try { row.accept(out, f); }
+                        catch (RuntimeException e) { throw new IllegalStateException("Malformed CSV record at byte " + (start + f.recordStart), e); }
+                        f.endRecord();
+                    }
+                    return out;
+                } catch (IOException e) { throw new UncheckedIOException(e); }
+            }
+
+            // Cursor over the fields of the current record
+            static final class Fields {
+                private final ByteBuffer buf;
+                private final int limit;
+                private int pos, recordStart;
+                private boolean eol;         // current record has no more fields
+                private byte[] scratch = new byte[128];
+
+                Fields(ByteBuffer buf) { this.buf = buf; this.limit = buf.limit(); }
+
+                // Advances past blank lines; false at the end of the run
+                boolean nextRecord() {
+                    while (pos < limit) {
+                        int p = pos;
+                        while (p < limit && (buf.get(p) == ' ' || buf.get(p) == '\t' || buf.get(p) == '\r')) p++;
+                        if (p < limit && buf.get(p) == '\n') { pos = p + 1; continue; }
+                        if (p == limit) { pos = limit; return false; }
+                        recordStart = pos;
+                        eol = false;
+                        return true;
+                    }
+                    return false;
+                }
+
+                boolean hasField() { return !eol; }
+
+                boolean emptyField() { return eol || pos >= limit || buf.get(pos) == ',' || buf.get(pos) == '\n' || buf.get(pos) == '\r'; }
+
+                String text() {
+                    if (eol) throw new IllegalArgumentException("Missing field");
+                    int n = 0;
+                    if (pos < limit && buf.get(pos) == '"') {
+                        pos++;
+                        while (pos < limit) {
+                            byte c = buf.get(pos++);
+                            if (c == '"') {
+                                if (pos < limit && buf.get(pos) == '"') pos++;
+                                else break;
+                            }
+                            if (n == scratch.length) scratch = Arrays.copyOf(scratch, n * 2);
+                            scratch[n++] = c;
+                        }
+                        // anything after the closing quote up to the delimiter is kept, as splitCsv keeps it
+                        while (pos < limit && !delimiter(buf.get(pos))) {
+                            if (n == scratch.length) scratch = Arrays.copyOf(scratch, n * 2);
+                            scratch[n++] = buf.get(pos++);
+                        }
+                    } else {
+                        while (pos < limit && !delimiter(buf.get(pos))) {
+                            if (n == scratch.length) scratch = Arrays.copyOf(scratch, n * 2);
+                            scratch[n++] = buf.get(pos++);
+                        }
+                    }
+                    endField();
+                    return new String(scratch, 0, n, StandardCharsets.UTF_8);
+                }
+
+                long number() {
+                    if (eol) throw new IllegalArgumentException("Missing field");
+                    boolean neg = pos < limit && buf.get(pos) == '-';
+                    if (neg) pos++;
+                    long v = 0; int digits = 0;
+                    while (pos < limit && !delimiter(buf.get(pos))) {
+                        int d = buf.get(pos++) - '0';
+                        if (d < 0 || d > 9 || digits++ == 18) throw new NumberFormatException("Bad number");
+                        v = v * 10 + d;
+                    }
+                    if (digits == 0) throw new NumberFormatException("Empty number");
+                    endField();
+                    return neg ? -v : v;
+                }
+
+                int integer() { return Math.toIntExact(number()); }
+
+                // ISO yyyy-MM-dd to days since 1970-01-01, the same value as LocalDate.toEpochDay
+                long epochDay() {
+                    if (eol || pos + 10 > limit || buf.get(pos + 4) != '-' || buf.get(pos + 7) != '-') throw new IllegalArgumentException("Bad date");
+                    int y = digits(pos, 4), m = digits(pos + 5, 2), d = digits(pos + 8, 2);
+                    pos += 10;
+                    if (pos < limit && !delimiter(buf.get(pos))) throw new IllegalArgumentException("Bad date");
+                    if (m < 1 || m > 12 || d < 1 || d > Month.of(m).length(Year.isLeap(y))) throw new IllegalArgumentException("Bad date"); // as LocalDate.parse
+                    endField();
+                    return CsvLoader.epochDay(y, m, d);
+                }
+
+                private int digits(int at, int count) {
+                    int v = 0;
+                    for (int i = at; i < at + count; i++) {
+                        int d = buf.get(i) - '0';
+                        if (d < 0 || d > 9) throw new IllegalArgumentException("Bad date");
+                        v = v * 10 + d;
+                    }
+                    return v;
+                }
+
+                private static boolean delimiter(byte c) { return c == ',' || c == '\n' || c == '\r'; }
+
+                private void endField() {
+                    if (pos < limit && buf.get(pos) == ',') pos++;
+                    else eol = true;
+                }
+
+                // Skips whatever is left of the record, including its newline
+                void endRecord() {
+                    boolean inQ = false;
+                    while (pos < limit) {
+                        byte c = buf.get(pos++);
+                        if (c == '"') inQ = !inQ;
+                        else if (c == '\n' && !inQ) break;
+                    }
+                    eol = true;
+                }
+            }
+
+            static long epochDay(long y, int m, int d) {
+                long total = 365 * y + (y + 3) / 4 - (y + 99) / 100 + (y + 399) / 400 + (367 * m - 362) / 12 + d - 1;
+                if (m > 2) { total--; if (!Year.isLeap(y)) total--; }
+                return total - 719528; // days from 0000-01-01 to 1970-01-01
+            }
+        }
+
+        // ===== Binary snapshot =====
+        // Checkpoint of books, users and hot loans for fast cold start. Layout: magic, format version, the newest
+        // journal segment the state covers and a section count, then per section a tag, payload length, CRC32 of
+        // the payload and the payload. Loans are stored as whole columns so they load with bulk buffer reads.
+        static class Snapshot {
+            static final int MAGIC = 0x4C4D5331; // "LMS1"
+            static final int VERSION = 1;
+            private static final byte BOOKS = 1, USERS = 2, LOANS = 3;
+
+            final int journalSeq;
+            List<Book> books;
+            List<User> users;
+            LoanTable loans;
+
+            private Snapshot(int journalSeq) { this.journalSeq = journalSeq; }
+
+            // Returns the number of bytes written
+            static long write(Path file, List<Book> books, List<User> users, LoanTable loans, int journalSeq) throws IOException {
+                List<byte[]> sections = Arrays.asList(encodeBooks(books), encodeUsers(users), encodeLoans(loans));
+                byte[] tags = { BOOKS, USERS, LOANS };
+                Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                long size;
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer head = ByteBuffer.allocate(16).putInt(MAGIC).putInt(VERSION).putInt(journalSeq).putInt(sections.size());
+                    writeFully(ch, head.flip());
+                    for (int i = 0; i < sections.size(); i++) {
+                        byte[] payload = sections.get(i);
+                        CRC32 crc = new CRC32();
+                        crc.update(payload);
+                        writeFully(ch, ByteBuffer.allocate(13).put(tags[i]).putInt(payload.length).putLong(crc.getValue()).flip());
+                        writeFully(ch, ByteBuffer.wrap(payload));
+                    }
+                    ch.force(true);
+                    size = ch.size();
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return size;
+            }
+
+            private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException { while (b.hasRemaining()) ch.write(b); }
+
+            // Reads and verifies the whole file; any mismatch is an IOException so the caller can fall back to CSV
+            static Snapshot read(Path file) throws IOException {
+                ByteBuffer buf;
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    long size = ch.size();
+                    if (size > Integer.MAX_VALUE) throw new IOException("Snapshot too large");
+                    buf = ByteBuffer.allocate((int) size);
+                    while (buf.hasRemaining() && ch.read(buf) > 0) { }
+                    buf.flip();
+                }
+                try {
+                    if (buf.getInt() != MAGIC) throw new IOException("Not a snapshot file");
+                    int version = buf.getInt();
+                    if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+                    Snapshot s = new Snapshot(buf.getInt());
+                    for (int n = buf.getInt(); n > 0; n--) {
+                        byte tag = buf.get();
+                        int len = buf.getInt();
+                        long crc = buf.getLong();
+                        ByteBuffer payload = buf.slice();
+                        payload.limit(len);
+                        CRC32 c = new CRC32();
+                        c.update(payload.duplicate());
+                        if (c.getValue() != crc) throw new IOException("Checksum mismatch in snapshot section " + tag);
+                        if (tag == BOOKS) s.books = decodeBooks(payload);
+                        else if (tag == USERS) s.users = decodeUsers(payload);
+                        else if (tag == LOANS) s.loans = decodeLoans(payload);
+                        buf.position(buf.position() + len);
+                    }
+                    if (s.books == null || s.users == null || s.loans == null) throw new IOException("Snapshot is missing a section");
+                    return s;
+                } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                    throw new IOException("Truncated or malformed snapshot", e);
+                }
+            }
+
+            private static byte[] encodeBooks(List<Book> books) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(books.size());
+                for (Book b : books) {
+                    out.writeLong(b.id); writeString(out, b.title); writeString(out, b.author);
+                    out.writeInt(b.totalCopies); out.writeInt(b.availableCopies);
+                }
+                return bytes.toByteArray();
+            }
+
+            private static List<Book> decodeBooks(ByteBuffer in) {
+                int n = in.getInt();
+                List<Book> out = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) out.add(new Book(in.getLong(), readString(in), readString(in), in.getInt(), in.getInt()));
+                return out;
+            }
+
+            private static byte[] encodeUsers(List<User> users) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(users.size());
+                for (User u : users) { writeString(out, u.username); writeString(out, u.passwordHash); writeString(out, u.fullName); }
+                return bytes.toByteArray();
+            }
+
+            private static List<User> decodeUsers(ByteBuffer in) {
+                int n = in.getInt();
+                List<User> out = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) out.add(new User(readString(in), readString(in), readString(in)));
+                return out;
+            }
+
+            // Name table first, then one column after another over the live rows
+            private static byte[] encodeLoans(LoanTable t) throws IOException {
+                int[] rows = IntStream.range(0, t.size()).filter(t::live).toArray();
+                Map<Integer, Integer> local = new HashMap<>();
+                List<String> names = new ArrayList<>();
+                for (int r : rows) local.computeIfAbsent(t.userId(r), k -> { names.add(t.username(r)); return names.size() - 1; });
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + rows.length * 32);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(names.size());
+                for (String s : names) writeString(out, s);
+                out.writeInt(rows.length);
+                for (int r : rows) out.writeLong(t.id(r));
+                for (int r : rows) out.writeLong(t.bookId(r));
+                for (int r : rows) out.writeInt(local.get(t.userId(r)));
+                for (int r : rows) out.writeInt(t.issueDay(r));
+                for (int r : rows) out.writeInt(t.dueDay(r));
+                for (int r : rows) out.writeInt(t.returnDay(r));
+                return bytes.toByteArray();
+            }
+
+            private static LoanTable decodeLoans(ByteBuffer in) {
+                String[] names = new String[in.getInt()];
+                for (int i = 0; i < names.length; i++) names[i] = readString(in);
+                int n = in.getInt();
+                long[] ids = new long[n], bookIds = new long[n];
+                int[] users = new int[n], issued = new int[n], due = new int[n], returned = new int[n];
+                in.asLongBuffer().get(ids); in.position(in.position() + n * 8);
+                in.asLongBuffer().get(bookIds); in.position(in.position() + n * 8);
+                for (int[] col : Arrays.asList(users, issued, due, returned)) { in.asIntBuffer().get(col); in.position(in.position() + n * 4); }
+                LoanTable t = new LoanTable();
+                int[] uid = new int[names.length];
+                for (int i = 0; i < names.length; i++) uid[i] = t.names().id(names[i]);
+                for (int i = 0; i < n; i++) t.putInterned(ids[i], bookIds[i], uid[users[i]], issued[i], due[i], returned[i]);
+                return t;
+            }
+
+            private static void writeString(DataOutputStream out, String s) throws IOException {
+                byte[] b = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+
+            private static String readString(ByteBuffer in) {
+                int len = in.getInt();
+                String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+                in.position(in.position() + len);
+                return s;
+            }
+        }
+
+        // ===== Loan archive =====
+        // Returned loans, partitioned by month of return into append-only CSVs (archive/loans-2024-05.csv). Nothing
+        // here is read at startup; segments are parsed on demand and the most recently used few stay cached.
+        static class LoanArchive {
+            private static final int CACHED_SEGMENTS = 12;
+            private final Path dir;
+            private final Map<YearMonth, LoanTable> cache = new LinkedHashMap<YearMonth, LoanTable>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<YearMonth, LoanTable> e) { return size() > CACHED_SEGMENTS; }
+            };
+
+            LoanArchive(Path dir) { this.dir = dir; }
+
+            void init() {
+                try { Files.createDirectories(dir); } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            static YearMonth monthOf(int epochDay) { return YearMonth.from(LocalDate.ofEpochDay(epochDay)); }
+
+            private Path file(YearMonth m) { return dir.resolve("loans-" + m + ".csv"); }
+
+            synchronized void append(LoanTable t, int row) {
+                long t0 = System.nanoTime();
+                Metrics.ARCHIVE_APPEND.record(t0, write(monthOf(t.returnDay(row)), t, Collections.singletonList(row)));
+            }
+
+            // Archives each returned row of t that its segment doesn't hold yet; the recovery and migration path
+            synchronized void appendMissing(LoanTable t) {
+                Map<YearMonth, List<Integer>> byMonth = new TreeMap<>();
+                for (int r = 0, n = t.size(); r < n; r++)
+                    if (t.live(r) && t.returnDay(r) != LoanTable.NO_DATE) byMonth.computeIfAbsent(monthOf(t.returnDay(r)), k -> new ArrayList<>()).add(r);
+                byMonth.forEach((m, rows) -> {
+                    LoanTable seg = segment(m);
+                    rows.removeIf(r -> seg.rowOf(t.id(r)) >= 0);
+                    if (!rows.isEmpty()) write(m, t, rows);
+                });
+            }
+
+            // Returns the number of bytes appended
+            private long write(YearMonth m, LoanTable t, List<Integer> rows) {
+                Path f = file(m);
+                long bytes = 0;
+                try {
+                    boolean fresh = !Files.exists(f);
+                    try (BufferedWriter bw = Files.newBufferedWriter(f, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                        String header = "id,bookId,username,issueDate,dueDate,returnDate\n";
+                        if (fresh) { bw.write(header); bytes += header.length(); }
+                        for (int r : rows) { String row = CsvStore.loanRow(t, r); bw.write(row); bw.write('\n'); bytes += Metrics.utf8Length(row) + 1; }
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                LoanTable cached = cache.get(m);
+                if (cached != null) for (int r : rows) cached.put(t.id(r), t.bookId(r), t.username(r), t.issueDay(r), t.dueDay(r), t.returnDay(r));
+                return bytes;
+            }
+
+            synchronized LoanTable segment(YearMonth m) {
+                LoanTable t = cache.get(m);
+                if (t != null) return t;
+                long t0 = System.nanoTime();
+                t = new LoanTable();
+                Path f = file(m);
+                if (Files.exists(f)) for (LoanTable run : CsvLoader.loadRuns(f, true, LoanTable::new, LoanTable::putRow)) t.putAll(run);
+                cache.put(m, t);
+                Metrics.ARCHIVE_LOAD.record(t0);
+                return t;
+            }
+
+            List<YearMonth> months() {
+                List<YearMonth> out = new ArrayList<>();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "loans-*.csv")) {
+                    for (Path p : ds) {
+                        String n = p.getFileName().toString();
+                        out.add(YearMonth.parse(n.substring("loans-".length(), n.length() - ".csv".length())));
+                    }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                Collections.sort(out);
+                return out;
+            }
+
+            // Loans returned in the months from..to inclusive; only those segments are read
+            List<Loan> returnedBetween(YearMonth from, YearMonth to) {
+                List<Loan> out = new ArrayList<>();
+                for (YearMonth m : months()) if (!m.isBefore(from) && !m.isAfter(to)) out.addAll(segment(m).views());
+                return out;
+            }
+
+            List<Loan> forUser(String username) {
+                List<Loan> out = new ArrayList<>();
+                for (YearMonth m : months()) {
+                    LoanTable t = segment(m);
+                    int uid = t.names().lookup(username);
+                    if (uid < 0) continue;
+                    for (int r = 0, n = t.size(); r < n; r++) if (t.live(r) && t.userId(r) == uid) out.add(t.view(r));
+                }
+                return out;
+            }
+
+            List<Loan> all() {
+                List<Loan> out = new ArrayList<>();
+                for (YearMonth m : months()) out.addAll(segment(m).views());
+                return out;
+            }
+
+            // Current size of every segment; rows appended later are not part of a scan up to these sizes
+            synchronized Map<YearMonth, Long> sizes() {
+                Map<YearMonth, Long> out = new TreeMap<>();
+                try { for (YearMonth m : months()) out.put(m, Files.size(file(m))); }
+                catch (IOException e) { throw new RuntimeException(e); }
+                return out;
+            }
+
+            // Every row of the segments up to the given sizes, a run at a time and without caching them
+            void scan(Map<YearMonth, Long> upTo, Consumer<LoanTable> rows) {
+                upTo.forEach((m, size) -> { for (LoanTable run : CsvLoader.loadRuns(file(m), size, true, LoanTable::new, LoanTable::putRow)) rows.accept(run); });
+            }
+        }
+
+        // ===== Journal (append-only write-ahead log) =====
+        // One CSV-escaped record per line. Upserts carry the full row, so replaying a log on top of any older
+        // snapshot converges to the same state.
+        static class Journal {
+            // SYNC: a mutation returns once its record is written and forced to disk; concurrent ones share the fsync.
+            // GROUP: a mutation returns at once; everything queued within groupMillis goes out in one write and fsync.
+            // ASYNC: records are written as the writer gets to them and never forced, so an OS crash can lose them.
+            enum Durability { SYNC, GROUP, ASYNC }
+
+            static final long DEFAULT_COMPACT_BYTES = 4L << 20;
+            static final long DEFAULT_GROUP_MILLIS = 5;
+            static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+            final Durability durability;
+            private final long groupNanos;
+            private final Path dir;
+            private final Path active;
+            private final long compactBytes;
+            private final Object io = new Object(); // held while a batch is written; always taken before the journal lock
+            private FileChannel ch;
+            private Writer out;
+            private long size; // bytes written or queued in the active log
+            private int seq; // number of the newest sealed segment
+            private List<String> pending = new ArrayList<>(), spare = new ArrayList<>();
+            private CompletableFuture<Void> batch = new CompletableFuture<>(); // completes when pending is committed
+            private CompletableFuture<Void> inFlight; // the batch being written, if any
+            private long openedAt; // when the first pending record was queued
+            private Thread writer;
+
+            Journal(Path dir, long compactBytes, Durability durability, long groupMillis) {
+                this.dir = dir;
+                this.active = dir.resolve("journal.log");
+                this.compactBytes = compactBytes;
+                this.durability = durability;
+                this.groupNanos = TimeUnit.MILLISECONDS.toNanos(groupMillis);
+            }
+
+            synchronized void open() {
+                try {
+                    if (Files.exists(active)) cutTornTail(active);
+                    openActive();
+                    size = Files.size(active);
+                    for (Path p : sealed()) seq = Math.max(seq, segmentNo(p));
+                } catch (IOException e) { throw new RuntimeException(e); }
+                if (writer == null) {
+                    writer = new Thread(this::writeLoop, "journal-writer");
+                    writer.setDaemon(true);
+                    writer.start();
+                }
+            }
+
+            // A crash mid-append can leave the last record without its newline; it was never acknowledged, so it is cut
+            // off before new records are appended behind it
+            private static void cutTornTail(Path p) throws IOException {
+                try (FileChannel c = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    long end = c.size();
+                    ByteBuffer b = ByteBuffer.allocate(1);
+                    while (end > 0) { b.clear(); c.read(b, end - 1); if (b.get(0) == '\n') break; end--; }
+                    if (end < c.size()) c.truncate(end);
+                }
+            }
+
+            private void openActive() throws IOException {
+                ch = FileChannel.open(active, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(ch), StandardCharsets.UTF_8), 1 << 16);
+            }
+
+            // Queues a record for the writer thread; the future completes when the batch holding it is committed
+            synchronized CompletableFuture<Void> append(String record) { return append(Collections.singletonList(record)); }
+
+            // Records queued together always land in the same batch
+            synchronized CompletableFuture<Void> append(List<String> records) {
+                long t0 = System.nanoTime();
+                if (pending.isEmpty()) { openedAt = t0; notifyAll(); }
+                for (String r : records) { pending.add(r); size += Metrics.utf8Length(r) + 1; }
+                Metrics.JOURNAL_APPEND.record(t0);
+                return batch;
+            }
+
+            // True once the active log has grown past the compaction threshold
+            synchronized boolean full() { return size >= compactBytes; }
+
+            // Completes once every record queued so far is committed
+            synchronized CompletableFuture<Void> whenDurable() {
+                if (!pending.isEmpty()) return batch;
+                return inFlight != null ? inFlight : DONE;
+            }
+
+            static void await(CompletableFuture<Void> f) {
+                try { f.join(); } catch (CompletionException e) { throw new RuntimeException(e.getCause()); }
+            }
+
+            private void writeLoop() {
+                try {
+                    while (true) {
+                        synchronized (this) {
+                            while (pending.isEmpty()) wait();
+                            // a group stays open until the window its first record started has passed
+                            long left;
+                            while (durability == Durability.GROUP && !pending.isEmpty() && (left = openedAt + groupNanos - System.nanoTime()) > 0)
+                                wait(left / 1_000_000, (int) (left % 1_000_000));
+                        }
+                        commit();
+                    }
+                } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+
+            // Writes everything queued as one batch, forced to disk unless ASYNC, then completes its future
+            private void commit() {
+                synchronized (io) {
+                    List<String> records;
+                    CompletableFuture<Void> done;
+                    synchronized (this) {
+                        if (pending.isEmpty()) return;
+                        records = pending; pending = spare; spare = records;
+                        done = inFlight = batch;
+                        batch = new CompletableFuture<>();
+                    }
+                    long t0 = System.nanoTime(), bytes = 0;
+                    try {
+                        for (String r : records) { out.write(r); out.write('\n'); bytes += Metrics.utf8Length(r) + 1; }
+                        out.flush();
+                        if (durability != Durability.ASYNC) ch.force(false);
+                        Metrics.JOURNAL_COMMIT.record(t0, bytes);
+                        done.complete(null);
+                    } catch (IOException e) {
+                        Metrics.JOURNAL_COMMIT.error();
+                        System.err.println("Journal write failed: " + e.getMessage());
+                        done.completeExceptionally(e);
+                    } finally {
+                        records.clear();
+                        synchronized (this) { inFlight = null; }
+                    }
+                }
+            }
+
+            // Commits what is queued now rather than when its group window closes
+            void flush() { commit(); }
+
+            // Commit what is queued, then close off the active log as the next numbered segment and start a fresh one
+            int seal() {
+                synchronized (io) {
+                    commit();
+                    synchronized (this) {
+                        try {
+                            out.close();
+                            seq++;
+                            Files.move(active, dir.resolve(String.format("journal-%06d.log", seq)), StandardCopyOption.ATOMIC_MOVE);
+                            openActive();
+                            size = 0;
+                            for (String r : pending) size += Metrics.utf8Length(r) + 1; // queued since the commit above
+                            return seq;
+                        } catch (IOException e) { throw new RuntimeException(e); }
+                    }
+                }
+            }
+
+            void dropSealed(int upTo) {
+                try {
+                    for (Path p : sealed()) if (segmentNo(p) <= upTo) Files.deleteIfExists(p);
+                } catch (IOException e) { throw new RuntimeException(e); }
+            }
+
+            synchronized boolean isEmpty() { return size == 0 && sealed().isEmpty(); }
+
+            // Sealed segments newer than afterSeq oldest first, then the active log
+            void replay(int afterSeq, Consumer<String[]> apply) {
+                List<Path> segments = sealed();
+                segments.removeIf(p -> segmentNo(p) <= afterSeq);
+                segments.add(active);
+                for (Path p : segments) {
+                    if (!Files.exists(p)) continue;
+                    try (BufferedReader br = Files.newBufferedReader(p, StandardCharsets.UTF_8)) {
+                        String line, next = br.readLine();
+                        for (int no = 1; (line = next) != null; no++) {
+                            next = br.readLine();
+                            if (line.isEmpty()) continue;
+                            try { apply.accept(CsvStore.splitCsv(line)); }
+                            catch (RuntimeException e) {
+                                if (p.equals(active) && next == null) break; // torn record from a crash mid-append
+                                throw new IllegalStateException("Malformed journal record at " + p.getFileName() + " line " + no, e);
+                            }
+                        }
+                    } catch (IOException e) { throw new RuntimeException(e); }
+                }
+            }
+
+            private List<Path> sealed() {
+                List<Path> out = new ArrayList<>();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "journal-*.log")) {
+                    for (Path p : ds) out.add(p);
+                } catch (IOException e) { throw new RuntimeException(e); }
+                out.sort(Comparator.comparingInt(Journal::segmentNo));
+                return out;
+            }
+
+            private static int segmentNo(Path p) {
+                String n = p.getFileName().toString();
+                return Integer.parseInt(n.substring("journal-".length(), n.length() - ".log".length()));
+            }
+        }
+
+        // ===== Id sequence =====
+        // Monotonic ids that survive restarts and deletions. The file holds a ceiling below which ids may already
+        // have been handed out; it is raised a block ahead, so a restart can skip ids but never reuses one.
+        static final class IdSequence {
+            private static final long BLOCK = 1000;
+            private final Path file;
+            private long last, ceiling;
+
+            IdSequence(Path file) { this.file = file; }
+
+            // Continue after the larger of the persisted ceiling and the highest id in use
+            synchronized void start(long highestInUse) {
+                long persisted = 0;
+                try { if (Files.exists(file)) persisted = Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim()); }
+                catch (IOException | NumberFormatException e) { System.err.println("Ignoring id sequence file: " + e.getMessage()); }
+                last = ceiling = Math.max(persisted, highestInUse);
+            }
+
+            long next() { return reserve(1); }
+
+            boolean persisted() { return Files.exists(file); }
+
+            // The first of n consecutive new ids
+            synchronized long reserve(int n) {
+                long first = last + 1;
+                last += n;
+                if (last > ceiling) {
+                    ceiling = last + BLOCK;
+                    CsvStore.writeAtomically(file, Collections.singletonList(String.valueOf(ceiling)));
+                }
+                return first;
+            }
+        }
+
+        // ===== Utilities =====
+        static class Security {
+            private static final char[] HEX = "0123456789abcdef".toCharArray();
+            private static final SecureRandom RANDOM = new SecureRandom();
+            // MessageDigest isn't thread-safe and getInstance() is a provider lookup, so each thread keeps one
+            private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+                try { return MessageDigest.getInstance("SHA-256"); } catch (NoSuchAlgorithmException e) { throw new RuntimeException(e); }
+            });
+
+            static String sha256Hex(String in) { return hex(SHA256.get().digest(in.getBytes(StandardCharsets.UTF_8))); }
+
+            static String hex(byte[] bytes) {
+                char[] out = new char[bytes.length * 2];
+                for (int i = 0; i < bytes.length; i++) { out[2 * i] = HEX[(bytes[i] >> 4) & 0xf]; out[2 * i + 1] = HEX[bytes[i] & 0xf]; }
+                return new String(out);
+            }
+
+            // Compares every character whatever the first difference, so the time taken doesn't leak a matching prefix
+            static boolean constantTimeEquals(String a, String b) {
+                if (a.length() != b.length()) return false;
+                int diff = 0;
+                for (int i = 0; i < a.length(); i++) diff |= a.charAt(i) ^ b.charAt(i);
+                return diff == 0;
+            }
+
+            // 256 random bits, hex encoded
+            static String newToken() {
+                byte[] b = new byte[32];
+                RANDOM.nextBytes(b);
+                return hex(b);
+            }
+        }
+
+        // ===== Sessions =====
+        // Login tokens with a fixed lifetime. Tokens expire in the order they were issued, so the queue head is always
+        // the next to go: expiry and the size bound are enforced by trimming the head on every login.
+        static final class SessionCache {
+            static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(30);
+            static final int DEFAULT_MAX_SESSIONS = 100_000;
+            private final ConcurrentMap<String, Session> byToken = new ConcurrentHashMap<>();
+            private final Queue<Session> byAge = new ConcurrentLinkedQueue<>(); // includes closed sessions until they age out
+            private final AtomicInteger queued = new AtomicInteger(); // byAge.size() is a full walk
+            private final long ttlMillis;
+            private final int maxSessions;
+
+            static final class Session {
+                final String token, username;
+                final long expiresAt;
+                Session(String token, String username, long expiresAt) { this.token = token; this.username = username; this.expiresAt = expiresAt; }
+            }
+
+            SessionCache(long ttlMillis, int maxSessions) { this.ttlMillis = ttlMillis; this.maxSessions = maxSessions; }
+
+            Session open(String username) {
+                Session s = new Session(Security.newToken(), username, System.currentTimeMillis() + ttlMillis);
+                byToken.put(s.token, s);
+                byAge.add(s);
+                queued.incrementAndGet();
+                trim();
+                return s;
+            }
+
+            // The user a live token belongs to, or null
+            String user(String token) {
+                Session s = byToken.get(token);
+                if (s == null) return null;
+                if (s.expiresAt <= System.currentTimeMillis()) { byToken.remove(token, s); return null; }
+                return s.username;
+            }
+
+            void close(String token) { byToken.remove(token); }
+
+            void closeAll(String username) { byToken.values().removeIf(s -> s.username.equals(username)); }
+
+            int size() { return byToken.size(); }
+
+            long ttlMillis() { return ttlMillis; }
+
+            private void trim() {
+                long now = System.currentTimeMillis();
+                Session head;
+                while ((head = byAge.peek()) != null && (head.expiresAt <= now || queued.get() > maxSessions)) {
+                    Session s = byAge.poll();
+                    if (s == null) break;
+                    queued.decrementAndGet();
+                    byToken.remove(s.token, s);
+                }
+            }
+        }
+
+        // ===== Metrics =====
+        // Per-operation latency histograms and counters, registered as MBeans under NamanDigital:type=Operation and
+        // optionally dumped to a text file. Recording only touches preallocated atomics and never allocates.
+        public interface OperationMBean {
+            long getCount();
+            long getErrors();
+            long getMisses();
+            long getBytes();
+            double getMeanMicros();
+            double getP50Micros();
+            double getP99Micros();
+            double getP999Micros();
+            double getMaxMicros();
+            void reset();
+        }
+
+        static final class Operation implements OperationMBean {
+            final String name;
+            private final LatencyHistogram latency = new LatencyHistogram();
+            private final LongAdder errors = new LongAdder();
+            private final LongAdder misses = new LongAdder(); // lookups that found nothing
+            private final LongAdder bytes = new LongAdder(); // bytes written, for I/O operations
+
+            Operation(String name) { this.name = name; }
+
+            void record(long startNanos) { latency.record(System.nanoTime() - startNanos); }
+            void record(long startNanos, long written) { record(startNanos); bytes.add(written); }
+            void error() { errors.increment(); }
+            void miss() { misses.increment(); }
+
+            @Override public long getCount() { return latency.count(); }
+            @Override public long getErrors() { return errors.sum(); }
+            @Override public long getMisses() { return misses.sum(); }
+            @Override public long getBytes() { return bytes.sum(); }
+            @Override public double getMeanMicros() { long n = latency.count(); return n == 0 ? 0 : latency.totalNanos() / 1e3 / n; }
+            @Override public double getP50Micros() { return latency.percentile(0.50) / 1e3; }
+            @Override public double getP99Micros() { return latency.percentile(0.99) / 1e3; }
+            @Override public double getP999Micros() { return latency.percentile(0.999) / 1e3; }
+            @Override public double getMaxMicros() { return latency.max() / 1e3; }
+            @Override public void reset() { latency.reset(); errors.reset(); misses.reset(); bytes.reset(); }
+
+            String line() {
+                return String.format(Locale.ROOT, "%-22s count=%d errors=%d misses=%d bytes=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                        name, getCount(), getErrors(), getMisses(), getBytes(), getMeanMicros(), getP50Micros(), getP99Micros(), getP999Micros(), getMaxMicros());
+            }
+        }
+
+        // Log-linear buckets over nanoseconds: 16 linear sub-buckets per power of two, so a reported percentile is
+        // within ~6% of the true value across the whole long range
+        static final class LatencyHistogram {
+            private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+            private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB);
+            private final LongAdder count = new LongAdder();
+            private final LongAdder total = new LongAdder();
+            private final AtomicLong max = new AtomicLong();
+
+            void record(long nanos) {
+                if (nanos < 0) nanos = 0;
+                counts.incrementAndGet(bucket(nanos));
+                count.increment();
+                total.add(nanos);
+                long m;
+                while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) { }
+            }
+
+            static int bucket(long v) {
+                if (v < SUB) return (int) v;
+                int exp = 63 - Long.numberOfLeadingZeros(v);
+                return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+            }
+
+            // Largest value that lands in bucket i
+            static long upperBound(int i) {
+                if (i < SUB) return i;
+                int shift = i / SUB - 1;
+                return ((long) (SUB + i % SUB) << shift) + (1L << shift) - 1;
+            }
+
+            long count() { return count.sum(); }
+            long totalNanos() { return total.sum(); }
+            long max() { return max.get(); }
+
+            long percentile(double q) {
+                long n = 0;
+                for (int i = 0; i < counts.length(); i++) n += counts.get(i);
+                if (n == 0) return 0;
+                long rank = Math.max(1, (long) Math.ceil(q * n)), seen = 0;
+                for (int i = 0; i < counts.length(); i++) if ((seen += counts.get(i)) >= rank) return Math.min(upperBound(i), max.get());
+                return max.get();
+            }
+
+            void reset() {
+                for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+                count.reset(); total.reset(); max.set(0);
+            }
+        }
+
+        static final class Metrics {
+            private static final Map<String, Operation> OPS = new ConcurrentSkipListMap<>();
+            static final Operation BOOK_FIND = op("book.find"), BOOK_SEARCH = op("book.search"), BOOK_CREATE = op("book.create"),
+                    BOOK_UPDATE = op("book.update"), BOOK_DELETE = op("book.delete");
+            static final Operation USER_AUTH = op("user.authenticate"), USER_SESSION = op("user.session"), USER_ADD = op("user.add"), USER_DELETE = op("user.delete");
+            static final Operation LOAN_FIND = op("loan.find"), LOAN_ISSUE = op("loan.issue"), LOAN_RETURN = op("loan.return"),
+                    HOLD_PLACE = op("hold.place"), HOLD_CANCEL = op("hold.cancel"), HOLD_EXPIRE = op("hold.expire");
+            static final Operation LOAD_BOOKS = op("store.load.books"), LOAD_USERS = op("store.load.users"), LOAD_LOANS = op("store.load.loans"),
+                    SAVE_BOOKS = op("store.save.books"), SAVE_USERS = op("store.save.users"), SAVE_LOANS = op("store.save.loans"), LOAD_HOLDS = op("store.load.holds"), SAVE_HOLDS = op("store.save.holds"), SAVE_FINES = op("store.save.fines"),
+                    JOURNAL_APPEND = op("store.journal.append"), JOURNAL_COMMIT = op("store.journal.commit"), COMPACT = op("store.compact"),
+                    SNAPSHOT_READ = op("store.snapshot.read"), SNAPSHOT_WRITE = op("store.snapshot.write"),
+                    ARCHIVE_APPEND = op("store.archive.append"), ARCHIVE_LOAD = op("store.archive.load");
+            private static ScheduledExecutorService dumper;
+
+            private Metrics() {}
+
+            static Operation op(String name) { return OPS.computeIfAbsent(name, Operation::new); }
+
+            static Collection<Operation> all() { return OPS.values(); }
+
+            // Safe to call more than once per JVM; already registered operations are left as they are
+            static void registerMBeans() {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                for (Operation o : all()) {
+                    try { server.registerMBean(new StandardMBean(o, OperationMBean.class), new ObjectName("NamanDigital:type=Operation,name=" + o.name)); }
+                    catch (InstanceAlreadyExistsException e) { /* registered by an earlier store in this JVM */ }
+                    catch (JMException e) { throw new RuntimeException(e); }
+                }
+            }
+
+            static String dump() {
+                StringBuilder sb = new StringBuilder("# ").append(Instant.now()).append('\n');
+                for (Operation o : all()) if (o.getCount() > 0 || o.getErrors() > 0) sb.append(o.line()).append('\n');
+                return sb.toString();
+            }
+
+            // Rewrites file with the current numbers every periodSeconds
+            static synchronized void startDump(Path file, long periodSeconds) {
+                if (dumper != null) return;
+                dumper = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "metrics-dump"); t.setDaemon(true); return t; });
+                dumper.scheduleAtFixedRate(() -> {
+                    try {
+                        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+                        Files.write(tmp, dump().getBytes(StandardCharsets.UTF_8));
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) { System.err.println("Metrics dump failed: " + e.getMessage()); }
+                }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+            }
+
+            // Encoded size without encoding, so byte counts cost no allocation
+            static int utf8Length(String s) {
+                int n = 0;
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c < 0x80) n++;
+                    else if (c < 0x800) n += 2;
+                    else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) { n += 4; i++; }
+                    else n += 3;
+                }
+                return n;
+            }
+        }
+
+        // ===== Services =====
+        // Services are safe to share between threads. A book's copy counts and every loan on that book only change
+        // while holding the book's lock stripe, and the matching journal record is appended under the same lock so
+        // the log sees changes in the order they happened.
+        static class BookService {
+            private final CsvStore store;
+            private final ConcurrentNavigableMap<Long, Book> books = new ConcurrentSkipListMap<>(); // primary index, id ordered
+            private final CatalogIndex catalog = new CatalogIndex();
+            // listing orders: lower-cased title or author, then id, see sortKey
+            private final ConcurrentNavigableMap<String, Book> byTitle = new ConcurrentSkipListMap<>();
+            private final ConcurrentNavigableMap<String, Book> byAuthor = new ConcurrentSkipListMap<>();
+            private final Object[] stripes = new Object[256];
+            private volatile Waitlist waitlist = Waitlist.NONE;
+
+            // The book's holders as LoanService sees them; called under the book's lock
+            interface Waitlist {
+                Waitlist NONE = new Waitlist() {
+                    public int restock(long bookId, int copies) { return 0; }
+                    public boolean waiting(long bookId) { return false; }
+                };
+                // Sets up to copies newly added copies aside for waiting holders, returns how many it did
+                int restock(long bookId, int copies);
+                boolean waiting(long bookId);
+            }
+
+            BookService(CsvStore store) {
+                this.store = store;
+                for (int i = 0; i < stripes.length; i++) stripes[i] = new Object();
+                reload();
+                store.bindBooks(this::all);
+            }
+
+            // Not safe against concurrent mutations; call before the service is shared
+            void reload() { reset(store.loadBooks()); }
+
+            // Replaces the whole catalog, also with a replica's copy of the primary's
+            void reset(List<Book> all) {
+                books.clear();
+                catalog.clear(); byTitle.clear(); byAuthor.clear();
+                long highest = 1000L;
+                for (Book b : all) { books.put(b.id, b); index(b); highest = Math.max(highest, b.id); }
+                store.bookIds().start(highest);
+            }
+
+            // Replicas: a book as the primary logged it, replacing the older copy; nothing is written
+            void apply(Book b) {
+                synchronized (lockFor(b.id)) {
+                    Book old = books.put(b.id, b);
+                    if (old != null) unindex(old);
+                    index(b);
+                }
+            }
+
+            void applyRemove(long id) {
+                synchronized (lockFor(id)) { Book old = books.remove(id); if (old != null) unindex(old); }
+            }
+
+            Object lockFor(long bookId) { return stripes[Long.hashCode(bookId) & (stripes.length - 1)]; }
+
+            List<Book> all() { return new ArrayList<>(books.values()); }
+
+            enum Sort { ID, TITLE, AUTHOR }
+
+            Page<Book> page(Sort sort, String cursor, int limit) {
+                switch (sort) {
+                    case TITLE: return Page.of(byTitle, cursor == null ? null : Page.key(cursor), limit, k -> k, b -> b);
+                    case AUTHOR: return Page.of(byAuthor, cursor == null ? null : Page.key(cursor), limit, k -> k, b -> b);
+                    default: return Page.of(books, cursor == null ? null : Page.longKey(cursor), limit, String::valueOf, b -> b);
+                }
+            }
+
+            // Case-insensitive text, then the id zero-padded so ties keep id order under String comparison
+            static String sortKey(String text, long id) {
+                String digits = Long.toString(id);
+                StringBuilder sb = new StringBuilder(text.length() + 20).append(text.toLowerCase(Locale.ROOT)).append('\u0000');
+                for (int i = digits.length(); i < 19; i++) sb.append('0');
+                return sb.append(digits).toString();
+            }
+
+            private void index(Book b) {
+                catalog.add(b);
+                byTitle.put(sortKey(b.title, b.id), b);
+                byAuthor.put(sortKey(b.author, b.id), b);
+            }
+
+            private void unindex(Book b) {
+                catalog.remove(b);
+                byTitle.remove(sortKey(b.title, b.id));
+                byAuthor.remove(sortKey(b.author, b.id));
+            }
+
+            Book find(long id) {
+                long t0 = System.nanoTime();
+                Book b = books.get(id);
+                if (b == null) Metrics.BOOK_FIND.miss();
+                Metrics.BOOK_FIND.record(t0);
+                return b;
+            }
+
+            // Ranked title/author search: exact terms beat prefixes, prefixes beat one-typo matches
+            List<Book> search(String query, int limit) {
+                long t0 = System.nanoTime();
+                List<Book> out = new ArrayList<>();
+                for (long id : catalog.search(query, limit)) {
+                    Book b = books.get(id);
+                    if (b != null) out.add(b); // deleted since the index was read
+                }
+                if (out.isEmpty()) Metrics.BOOK_SEARCH.miss();
+                Metrics.BOOK_SEARCH.record(t0);
+                return out;
+            }
+
+            Book create(String title, String author, int copies) {
+                long t0 = System.nanoTime();
+                long id = nextId();
+                Book b = new Book(id, title, author, copies, copies);
+                change(id, () -> {
+                    books.put(id, b);
+                    index(b);
+                    store.putBook(b);
+                    return b;
+                });
+                Metrics.BOOK_CREATE.record(t0);
+                return b;
+            }
+
+            // Added copies go to waiting holders first, in the same journal batch as the book
+            boolean update(long id, String title, String author, Integer totalCopies) {
+                long t0 = System.nanoTime();
+                try { return change(id, () -> updateLocked(id, title, author, totalCopies)); }
+                finally { Metrics.BOOK_UPDATE.record(t0); }
+            }
+
+            private boolean updateLocked(long id, String title, String author, Integer totalCopies) {
+                Book b = books.get(id); if (b==null) { Metrics.BOOK_UPDATE.miss(); return false; }
+                int out = b.totalCopies - b.availableCopies; // on loan or set aside for a holder
+                if (totalCopies!=null && totalCopies < out) throw new IllegalArgumentException(out + " copies are out, total can't go below that");
+                unindex(b);
+                if (title!=null) b.title = title;
+                if (author!=null) b.author = author;
+                index(b);
+                if (totalCopies!=null) {
+                    int diff = totalCopies - b.totalCopies;
+                    b.totalCopies = totalCopies;
+                    b.availableCopies += diff; // adjust availability accordingly
+                    if (diff > 0) b.availableCopies -= waitlist.restock(id, diff);
+                }
+                store.putBook(b);
+                return true;
+            }
+
+            boolean delete(long id) {
+                long t0 = System.nanoTime();
+                try { return change(id, () -> {
+                    Book b = books.get(id); if (b==null) { Metrics.BOOK_DELETE.miss(); return false; }
+                    if (b.availableCopies != b.totalCopies) return false; // some copies lent out
+                    if (waitlist.waiting(id)) return false; // holders still waiting, e.g. for a book with no copies
+                    books.remove(id);
+                    unindex(b);
+                    store.removeBook(id);
+                    return true;
+                }); } finally { Metrics.BOOK_DELETE.record(t0); }
+            }
+
+            void changeAvailable(long id, int delta) {
+                change(id, () -> {
+                    Book b = books.get(id); if (b==null) throw new IllegalArgumentException("Book not found");
+                    int avail = b.availableCopies + delta;
+                    if (avail < 0 || avail > b.totalCopies) throw new IllegalArgumentException("Invalid availability change");
+                    b.availableCopies = avail;
+                    store.putBook(b);
+                    return null;
+                });
+            }
+
+            // Runs body under the book's lock as one store change, so its records share a journal batch; a SYNC
+            // caller waits for that commit after releasing the lock. Nested changes join the outermost one.
+            <T> T change(long bookId, Supplier<T> body) {
+                T result;
+                CompletableFuture<Void> durable;
+                synchronized (lockFor(bookId)) {
+                    store.beginChange();
+                    try { result = body.get(); }
+                    finally { durable = store.endChange(); }
+                }
+                store.settle(durable);
+                return result;
+            }
+
+            void bindWaitlist(Waitlist w) { waitlist = w; }
+
+            private long nextId() { return store.bookIds().next(); }
+
+            // Streams title,author[,copies] rows from an external CSV (a title,... header line is skipped). Rows are
+            // validated, deduplicated by normalized title and author against the catalog and earlier rows, and
+            // committed batchSize at a time with one id reservation and one journal write per batch. Rejected rows
+            // go to rejectsFile with their line number and reason; progress is called after every batch.
+            ImportReport importCsv(Path source, Path rejectsFile, int batchSize, Consumer<ImportReport> progress) {
+                ImportReport report = new ImportReport(rejectsFile);
+                Set<String> seen = new HashSet<>();
+                for (Book b : books.values()) seen.add(dedupeKey(b.title, b.author));
+                try (BufferedReader in = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+                     BufferedWriter rejects = Files.newBufferedWriter(rejectsFile, StandardCharsets.UTF_8)) {
+                    rejects.write("line,reason,row\n");
+                    List<String[]> batch = new ArrayList<>(batchSize);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        long no = ++report.lines;
+                        if (line.trim().isEmpty() || (no == 1 && line.toLowerCase(Locale.ROOT).startsWith("title,"))) continue;
+                        String[] p = CsvStore.splitCsv(line);
+                        String reason = validate(p);
+                        if (reason == null && !seen.add(dedupeKey(p[0], p[1]))) { reason = "duplicate"; report.duplicates++; }
+                        if (reason != null) {
+                            report.rejected++;
+                            rejects.write(no + "," + CsvStore.esc(reason) + "," + CsvStore.esc(line) + "\n");
+                            continue;
+                        }
+                        batch.add(p);
+                        if (batch.size() == batchSize) { commitImport(batch, report); progress.accept(report); }
+                    }
+                    if (!batch.isEmpty()) { commitImport(batch, report); progress.accept(report); }
+                } catch (IOException e) { throw new RuntimeException(e); }
+                return report;
+            }
+
+            private void commitImport(List<String[]> rows, ImportReport report) {
+                long first = store.bookIds().reserve(rows.size());
+                List<Book> batch = new ArrayList<>(rows.size());
+                for (String[] p : rows) {
+                    int copies = p.length > 2 ? Integer.parseInt(p[2].trim()) : 1;
+                    batch.add(new Book(first + batch.size(), p[0].trim(), p[1].trim(), copies, copies));
+                }
+                // logged before the books become visible, so no later change to them can precede the import record
+                Journal.await(store.putBooks(batch));
+                for (Book b : batch) { books.put(b.id, b); index(b); }
+                report.imported += batch.size();
+                report.batches++;
+                rows.clear();
+            }
+
+            private static String validate(String[] p) {
+                if (p.length < 2 || p.length > 3) return "expected title,author[,copies]";
+                if (p[0].trim().isEmpty()) return "missing title";
+                if (p[1].trim().isEmpty()) return "missing author";
+                if (p[0].length() > 500 || p[1].length() > 500) return "field too long";
+                if (p.length == 3) {
+                    try { int c = Integer.parseInt(p[2].trim()); if (c < 1 || c > 100000) return "copies out of range"; }
+                    catch (NumberFormatException e) { return "copies not a number"; }
+                }
+                return null;
+            }
+
+            // Lower-cased with runs of whitespace collapsed, so "The  Hobbit" and "the hobbit" collide
+            static String dedupeKey(String title, String author) {
+                StringBuilder sb = new StringBuilder(title.length() + author.length() + 1);
+                normalize(title, sb);
+                sb.append('\u0000');
+                normalize(author, sb);
+                return sb.toString();
+            }
+
+            private static void normalize(String s, StringBuilder sb) {
+                boolean space = false;
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (Character.isWhitespace(c)) { space = true; continue; }
+                    if (space && sb.length() > 0 && sb.charAt(sb.length() - 1) != '\u0000') sb.append(' ');
+                    space = false;
+                    sb.append(Character.toLowerCase(c));
+                }
+            }
+        }
+
+        static final class ImportReport {
+            final Path rejects;
+            long lines, imported, duplicates, rejected, batches;
+
+            ImportReport(Path rejects) { this.rejects = rejects; }
+
+            @Override public String toString() {
+                return String.format("read %d lines: %d imported in %d batches, %d rejected (%d duplicates)", lines, imported, batches, rejected, duplicates);
+            }
+        }
+
+        // In-memory inverted index over tokenized title and author. Tokens live in a sorted dictionary for prefix
+        // queries, and every token is also filed under its single-character deletions so that a query term within
+        // one edit of a catalog term can be found without walking the dictionary.
+        static class CatalogIndex {
+            private static final int TITLE = 1, AUTHOR = 2;
+            private static final int FUZZY_MIN_LEN = 4;    // shorter terms match too much when fuzzed
+            private static final int PREFIX_EXPANSION = 64; // dictionary terms considered per prefix
+
+            private final TreeMap<String, Map<Long, Integer>> postings = new TreeMap<>(); // term -> bookId -> field mask
+            private final Map<String, Set<String>> deletions = new HashMap<>();        // deletion variant -> terms
+
+            synchronized void add(Book b) {
+                for (String t : tokenize(b.title)) post(t, b.id, TITLE);
+                for (String t : tokenize(b.author)) post(t, b.id, AUTHOR);
+            }
+
+            synchronized void remove(Book b) {
+                for (String t : tokenize(b.title)) unpost(t, b.id);
+                for (String t : tokenize(b.author)) unpost(t, b.id);
+            }
+
+            synchronized void clear() { postings.clear(); deletions.clear(); }
+
+            private void post(String term, long id, int field) {
+                Map<Long, Integer> p = postings.get(term);
+                if (p == null) {
+                    postings.put(term, p = new HashMap<>());
+                    if (term.length() >= FUZZY_MIN_LEN) for (String d : deletes(term)) deletions.computeIfAbsent(d, k -> new HashSet<>()).add(term);
+                }
+                p.merge(id, field, (x, y) -> x | y);
+            }
+
+            private void unpost(String term, long id) {
+                Map<Long, Integer> p = postings.get(term);
+                if (p == null || p.remove(id) == null || !p.isEmpty()) return;
+                postings.remove(term);
+                if (term.length() >= FUZZY_MIN_LEN) for (String d : deletes(term)) {
+                    Set<String> s = deletions.get(d);
+                    if (s != null && s.remove(term) && s.isEmpty()) deletions.remove(d);
+                }
+            }
+
+            // Book ids ranked by score, best first; ties go to the lower id
+            synchronized List<Long> search(String query, int k) {
+                Map<Long, Double> scores = new HashMap<>();
+                for (String q : tokenize(query)) {
+                    Map<Long, Double> best = new HashMap<>();
+                    collect(best, postings.get(q), 3.0);
+                    int n = 0;
+                    for (Map.Entry<String, Map<Long, Integer>> e : postings.subMap(q, false, q + Character.MAX_VALUE, false).entrySet()) {
+                        if (n++ == PREFIX_EXPANSION) break;
+                        collect(best, e.getValue(), 2.0);
+                    }
+                    if (q.length() >= FUZZY_MIN_LEN) for (String t : fuzzyTerms(q)) collect(best, postings.get(t), 1.0);
+                    best.forEach((id, s) -> scores.merge(id, s, Double::sum));
+                }
+                PriorityQueue<Map.Entry<Long, Double>> top = new PriorityQueue<>(Math.max(1, Math.min(k, scores.size())), CatalogIndex::worse);
+                for (Map.Entry<Long, Double> e : scores.entrySet()) {
+                    if (top.size() < k) top.add(e);
+                    else if (k > 0 && worse(top.peek(), e) < 0) { top.poll(); top.add(e); }
+                }
+                List<Long> out = new ArrayList<>();
+                while (!top.isEmpty()) out.add(top.poll().getKey());
+                Collections.reverse(out);
+                return out;
+            }
+
+            // Orders the weaker match first
+            private static int worse(Map.Entry<Long, Double> a, Map.Entry<Long, Double> b) {
+                int c = Double.compare(a.getValue(), b.getValue());
+                return c != 0 ? c : Long.compare(b.getKey(), a.getKey());
+            }
+
+            // Title hits count double; a book keeps its best match kind per query term
+            private static void collect(Map<Long, Double> best, Map<Long, Integer> posting, double kind) {
+                if (posting == null) return;
+                posting.forEach((id, fields) -> {
+                    double s = kind * (((fields & TITLE) != 0 ? 2 : 0) + ((fields & AUTHOR) != 0 ? 1 : 0));
+                    best.merge(id, s, Math::max);
+                });
+            }
+
+            private Set<String> fuzzyTerms(String q) {
+                Set<String> candidates = new HashSet<>(deletions.getOrDefault(q, Collections.emptySet()));
+                for (String d : deletes(q)) {
+                    if (postings.containsKey(d)) candidates.add(d);
+                    candidates.addAll(deletions.getOrDefault(d, Collections.emptySet()));
+                }
+                candidates.removeIf(t -> t.equals(q) || !withinOneEdit(q, t));
+                return candidates;
+            }
+
+            private static List<String> deletes(String t) {
+                List<String> out = new ArrayList<>(t.length());
+                for (int i = 0; i < t.length(); i++) out.add(t.substring(0, i) + t.substring(i + 1));
+                return out;
+            }
+
+            // One insertion, deletion, substitution or adjacent transposition
+            static boolean withinOneEdit(String a, String b) {
+                int la = a.length(), lb = b.length();
+                if (Math.abs(la - lb) > 1) return false;
+                int i = 0;
+                while (i < Math.min(la, lb) && a.charAt(i) == b.charAt(i)) i++;
+                if (i == Math.min(la, lb)) return true;
+                if (la == lb) {
+                    if (a.regionMatches(i + 1, b, i + 1, la - i - 1)) return true;
+                    return i + 1 < la && a.charAt(i) == b.charAt(i + 1) && a.charAt(i + 1) == b.charAt(i) && a.regionMatches(i + 2, b, i + 2, la - i - 2);
+                }
+                return la > lb ? a.regionMatches(i + 1, b, i, lb - i) : b.regionMatches(i + 1, a, i, la - i);
+            }
+
+            static List<String> tokenize(String s) {
+                List<String> out = new ArrayList<>();
+                if (s == null) return out;
+                int start = -1;
+                for (int i = 0; i <= s.length(); i++) {
+                    boolean word = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+                    if (word && start < 0) start = i;
+                    else if (!word && start >= 0) { out.add(s.substring(start, i).toLowerCase(Locale.ROOT)); start = -1; }
+                }
+                return out;
+            }
+        }
+
+        static class UserService {
+            private final CsvStore store;
+            private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>(); // by username
+            private final ConcurrentNavigableMap<String, User> byName = new ConcurrentSkipListMap<>(); // username order, for listings
+            private final SessionCache sessions;
+
+            UserService(CsvStore store) { this(store, new SessionCache(SessionCache.DEFAULT_TTL_MILLIS, SessionCache.DEFAULT_MAX_SESSIONS)); }
+
+            UserService(CsvStore store, SessionCache sessions) { this.store = store; this.sessions = sessions; reload(); store.bindUsers(this::all); }
+
+            void reload() { reset(store.loadUsers()); }
+
+            void reset(List<User> all) {
+                users.clear(); byName.clear();
+                for (User u : all) { users.put(u.username, u); byName.put(u.username, u); }
+            }
+
+            // Replicas: apply the primary's changes without writing them
+            synchronized void apply(User u) { users.put(u.username, u); byName.put(u.username, u); }
+
+            synchronized void applyRemove(String username) { users.remove(username); byName.remove(username); sessions.closeAll(username); }
+
+            // Unknown users count as misses, wrong passwords as errors
+            boolean authenticate(String username, String password) {
+                long t0 = System.nanoTime();
+                User u = users.get(username);
+                boolean ok = u != null && Security.constantTimeEquals(u.passwordHash, Security.sha256Hex(password));
+                if (u == null) Metrics.USER_AUTH.miss(); else if (!ok) Metrics.USER_AUTH.error();
+                Metrics.USER_AUTH.record(t0);
+                return ok;
+            }
+
+            // Checks the password once and returns a session token for later requests, or null
+            SessionCache.Session login(String username, String password) {
+                return authenticate(username, password) ? sessions.open(username) : null;
+            }
+
+            // The user behind a live session token, or null; a map lookup, no hashing
+            String sessionUser(String token) {
+                long t0 = System.nanoTime();
+                String user = sessions.user(token);
+                if (user == null) Metrics.USER_SESSION.miss();
+                Metrics.USER_SESSION.record(t0);
+                return user;
+            }
+
+            void logout(String token) { sessions.close(token); }
+
+            synchronized boolean addUser(String username, String password, String fullName) {
+                long t0 = System.nanoTime();
+                validate(username, fullName);
+                if (users.containsKey(username)) return false;
+                User u = new User(username, Security.sha256Hex(password), fullName==null?"":fullName);
+                users.put(username, u);
+                byName.put(username, u);
+                store.putUser(u);
+                Metrics.USER_ADD.record(t0);
+                return true;
+            }
+
+            // Usernames go unquoted into Basic credentials and are keys in every user and loan record, so the
+            // characters that separate or quote fields, lines or credentials are refused outright
+            static void validate(String username, String fullName) {
+                if (username == null || username.isBlank()) throw new IllegalArgumentException("Username is required");
+                for (char c : username.toCharArray())
+                    if (c == ',' || c == '"' || c == '\r' || c == '\n' || c == ':') throw new IllegalArgumentException("Usernames can't contain commas, quotes, colons or line breaks");
+                if (fullName != null && (fullName.indexOf('\n') >= 0 || fullName.indexOf('\r') >= 0)) throw new IllegalArgumentException("Names can't contain line breaks");
+            }
+
+            synchronized boolean deleteUser(String username, LoanService loans) {
+                long t0 = System.nanoTime();
+                if (loans.hasActive(username)) return false;
+                if (users.remove(username) == null) { Metrics.USER_DELETE.miss(); return false; }
+                byName.remove(username);
+                sessions.closeAll(username);
+                loans.cancelHolds(username);
+                store.removeUser(username);
+                Metrics.USER_DELETE.record(t0);
+                return true;
+            }
+
+            List<User> all() { return new ArrayList<>(byName.values()); }
+
+            Page<User> page(String cursor, int limit) { return Page.of(byName, cursor == null ? null : Page.key(cursor), limit, k -> k, u -> u); }
+        }
+
+        // The hot LoanTable (primary index by loan id) plus secondary indexes of the active loans by user, by book and
+        // by due day. The due-day buckets are ordered, so everything overdue is a head of that map.
+        static class LoanIndex {
+            private volatile LoanTable table = new LoanTable();
+            private final ConcurrentMap<String, ConcurrentNavigableMap<Long, Loan>> activeByUser = new ConcurrentHashMap<>();
+            private final ConcurrentMap<Long, ConcurrentNavigableMap<Long, Loan>> activeByBook = new ConcurrentHashMap<>();
+            private final ConcurrentNavigableMap<Integer, ConcurrentNavigableMap<Long, Loan>> activeByDue = new ConcurrentSkipListMap<>(); // epoch day
+            private final ConcurrentNavigableMap<Long, Loan> activeById = new ConcurrentSkipListMap<>(); // listings; the table is not id ordered
+
+            void reset(LoanTable t) {
+                table = t;
+                activeByUser.clear(); activeByBook.clear(); activeByDue.clear(); activeById.clear();
+                for (int r = 0, n = t.size(); r < n; r++) if (t.live(r) && t.returnDay(r) == LoanTable.NO_DATE) activate(t.view(r));
+            }
+
+            Loan add(IdSequence ids, long bookId, String username, LocalDate issue, LocalDate due) {
+                LoanTable t = table;
+                int row;
+                synchronized (t) { // assign the id and append together so ids stay ascending in the table
+                    long id = ids.next();
+                    row = t.put(id, bookId, username, (int) issue.toEpochDay(), (int) due.toEpochDay(), LoanTable.NO_DATE);
+                }
+                Loan l = t.view(row);
+                activate(l);
+                return l;
+            }
+
+            // A loan with a known id, e.g. one a replica receives from its primary
+            Loan restore(long id, long bookId, String username, int issueDay, int dueDay) {
+                LoanTable t = table;
+                Loan l = t.view(t.put(id, bookId, username, issueDay, dueDay, LoanTable.NO_DATE));
+                activate(l);
+                return l;
+            }
+
+            void returned(Loan l, LocalDate ret) {
+                l.table.setReturnDay(l.row, (int) ret.toEpochDay());
+                detach(activeByUser, l.username(), l.id());
+                detach(activeByBook, l.bookId(), l.id());
+                detach(activeByDue, l.table.dueDay(l.row), l.id());
+                activeById.remove(l.id());
+            }
+
+            // Drops a returned (and archived) loan from the hot table
+            void evict(Loan l) { l.table.remove(l.row); }
+
+            private void activate(Loan l) {
+                attach(activeByUser, l.username(), l);
+                attach(activeByBook, l.bookId(), l);
+                attach(activeByDue, l.table.dueDay(l.row), l);
+                activeById.put(l.id(), l);
+            }
+
+            // compute() keeps creating and dropping a per-key map atomic with respect to other writers on that key
+            private static <K> void attach(ConcurrentMap<K, ConcurrentNavigableMap<Long, Loan>> index, K key, Loan l) {
+                index.compute(key, (k, m) -> { if (m == null) m = new ConcurrentSkipListMap<>(); m.put(l.id(), l); return m; });
+            }
+
+            private static <K> void detach(ConcurrentMap<K, ConcurrentNavigableMap<Long, Loan>> index, K key, long loanId) {
+                index.computeIfPresent(key, (k, m) -> { m.remove(loanId); return m.isEmpty() ? null : m; });
+            }
+
+            Loan get(long id) { return table.find(id); }
+            LoanTable table() { return table; }
+            List<Loan> all() { return table.views(); }
+            Collection<Loan> activeForUser(String username) { Map<Long, Loan> m = activeByUser.get(username); return m == null ? Collections.emptyList() : m.values(); }
+            Collection<Loan> activeForBook(long bookId) { Map<Long, Loan> m = activeByBook.get(bookId); return m == null ? Collections.emptyList() : m.values(); }
+
+            Page<Loan> pageById(String cursor, int limit) { return Page.of(activeById, cursor == null ? null : Page.longKey(cursor), limit, String::valueOf, l -> l); }
+
+            // Active loans in (due day, id) order; the cursor is "<epoch day>:<id>" of the last loan served
+            Page<Loan> pageByDue(String cursor, int limit) {
+                limit = Page.clamp(limit);
+                int due = Integer.MIN_VALUE;
+                long id = Long.MIN_VALUE;
+                if (cursor != null) {
+                    String key = Page.key(cursor);
+                    int colon = key.indexOf(':');
+                    try { due = Integer.parseInt(key.substring(0, colon)); id = Long.parseLong(key.substring(colon + 1)); }
+                    catch (RuntimeException e) { throw new IllegalArgumentException("Invalid cursor"); }
+                }
+                List<Loan> out = new ArrayList<>(Math.min(limit, 64));
+                int lastDue = due;
+                long lastId = id;
+                for (Map.Entry<Integer, ConcurrentNavigableMap<Long, Loan>> bucket : activeByDue.tailMap(due, true).entrySet()) {
+                    Map<Long, Loan> loans = bucket.getKey() == due ? bucket.getValue().tailMap(id, false) : bucket.getValue();
+                    for (Map.Entry<Long, Loan> e : loans.entrySet()) {
+                        if (out.size() == limit) return new Page<>(out, Page.cursor(lastDue + ":" + lastId));
+                        out.add(e.getValue());
+                        lastDue = bucket.getKey(); lastId = e.getKey();
+                    }
+                }
+                return new Page<>(out, null);
+            }
+
+            // Active loans due before the given epoch day, earliest due first; only the overdue buckets are visited
+            List<Loan> dueBefore(int day) {
+                List<Loan> out = new ArrayList<>();
+                for (Map<Long, Loan> bucket : activeByDue.headMap(day).values()) out.addAll(bucket.values());
+                return out;
+            }
+        }
+
+        // Per-book waiting lists plus the copies set aside for holders, ordered by pickup deadline. A book's list is
+        // a LinkedHashMap by hold id changed only under that book's stripe lock, so joining, leaving and taking the
+        // head are O(1); setting a copy aside or letting it expire is O(log n).
+        static class HoldQueues {
+            private final ConcurrentMap<Long, Hold> byId = new ConcurrentHashMap<>();
+            private final ConcurrentMap<Long, LinkedHashMap<Long, Hold>> waiting = new ConcurrentHashMap<>(); // by book, oldest first
+            private final ConcurrentMap<String, ConcurrentNavigableMap<Long, Hold>> byUser = new ConcurrentHashMap<>();
+            private final ConcurrentNavigableMap<Integer, ConcurrentNavigableMap<Long, Hold>> readyByDeadline = new ConcurrentSkipListMap<>(); // epoch day
+
+            // Holds must come in id order, which is the order they were placed in
+            void reset(List<Hold> holds) {
+                byId.clear(); waiting.clear(); byUser.clear(); readyByDeadline.clear();
+                for (Hold h : holds) add(h);
+            }
+
+            void add(Hold h) {
+                byId.put(h.id, h);
+                attach(byUser, h.username, h);
+                if (h.isReady()) attach(readyByDeadline, (int) h.pickupBy.toEpochDay(), h);
+                else waiting.computeIfAbsent(h.bookId, k -> new LinkedHashMap<>()).put(h.id, h);
+            }
+
+            void remove(Hold h) {
+                byId.remove(h.id);
+                detach(byUser, h.username, h.id);
+                if (h.isReady()) detach(readyByDeadline, (int) h.pickupBy.toEpochDay(), h.id);
+                else {
+                    Map<Long, Hold> q = waiting.get(h.bookId);
+                    if (q != null && q.remove(h.id) != null && q.isEmpty()) waiting.remove(h.bookId);
+                }
+            }
+
+            // Sets a copy aside for the book's longest-waiting holder until pickupBy; null if nobody is waiting
+            Hold allocate(long bookId, LocalDate pickupBy) {
+                LinkedHashMap<Long, Hold> q = waiting.get(bookId);
+                if (q == null) return null;
+                Iterator<Hold> it = q.values().iterator();
+                Hold h = it.next();
+                it.remove();
+                if (q.isEmpty()) waiting.remove(bookId);
+                h.pickupBy = pickupBy;
+                attach(readyByDeadline, (int) pickupBy.toEpochDay(), h);
+                return h;
+            }
+
+            private static <K> void attach(ConcurrentMap<K, ConcurrentNavigableMap<Long, Hold>> index, K key, Hold h) {
+                index.compute(key, (k, m) -> { if (m == null) m = new ConcurrentSkipListMap<>(); m.put(h.id, h); return m; });
+            }
+
+            private static <K> void detach(ConcurrentMap<K, ConcurrentNavigableMap<Long, Hold>> index, K key, long holdId) {
+                index.computeIfPresent(key, (k, m) -> { m.remove(holdId); return m.isEmpty() ? null : m; });
+            }
+
+            Hold get(long id) { return byId.get(id); }
+
+            // The user's hold on the book, waiting or ready; a user has only a handful of holds
+            Hold holding(long bookId, String username) {
+                Map<Long, Hold> m = byUser.get(username);
+                if (m != null) for (Hold h : m.values()) if (h.bookId == bookId) return h;
+                return null;
+            }
+
+            Collection<Hold> forUser(String username) { Map<Long, Hold> m = byUser.get(username); return m == null ? Collections.emptyList() : m.values(); }
+
+            // Under the book's lock
+            int waiting(long bookId) { Map<Long, Hold> q = waiting.get(bookId); return q == null ? 0 : q.size(); }
+
+            // Ready holds whose last pickup day is before the given epoch day
+            List<Hold> readyBefore(int day) {
+                List<Hold> out = new ArrayList<>();
+                for (Map<Long, Hold> bucket : readyByDeadline.headMap(day).values()) out.addAll(bucket.values());
+                return out;
+            }
+
+            List<Hold> all() {
+                List<Hold> out = new ArrayList<>(byId.values());
+                out.sort(Comparator.comparingLong(h -> h.id));
+                return out;
+            }
+        }
+
+        static class LoanService {
+            private final CsvStore store;
+            private final BookService books;
+            private final LoanIndex loans = new LoanIndex();
+            private final HoldQueues holds = new HoldQueues();
+            private final CirculationStats stats = new CirculationStats();
+            private final int loanDays = 14; // default loan period
+            private final double finePerDay = 5.0; // currency units per day late
+            private final int pickupDays = 3; // how long a copy set aside for a holder waits for them
+
+            LoanService(CsvStore store, BookService books) {
+                this.store = store; this.books = books; reload();
+                books.bindWaitlist(new BookService.Waitlist() {
+                    public int restock(long bookId, int copies) { return LoanService.this.restock(bookId, copies); }
+                    public boolean waiting(long bookId) { return holds.waiting(bookId) > 0; }
+                });
+                store.bindLoans(() -> loans.table().copy());
+                store.bindHolds(holds::all);
+                rebuildStats();
+            }
+
+            // Folds in loans from before startup: the active ones right away, the archived ones on a background thread.
+            // The archive is only read up to its current size, since returns from now on arrive as events.
+            private void rebuildStats() {
+                for (Loan l : loans.all()) stats.issued(l.bookId(), author(l.bookId()), l.username(), l.table.issueDay(l.row));
+                Map<YearMonth, Long> archived = store.archive().sizes();
+                if (archived.isEmpty()) return;
+                stats.rebuilding(true);
+                Thread t = new Thread(() -> {
+                    try {
+                        store.archive().scan(archived, run -> {
+                            for (int r = 0, n = run.size(); r < n; r++) if (run.live(r)) {
+                                stats.issued(run.bookId(r), author(run.bookId(r)), run.username(r), run.issueDay(r));
+                                stats.returned(run.issueDay(r), run.returnDay(r));
+                            }
+                        });
+                    } catch (RuntimeException e) { System.err.println("Circulation stats rebuild failed: " + e.getMessage()); }
+                    finally { stats.rebuilding(false); }
+                }, "stats-rebuild");
+                t.setDaemon(true);
+                t.start();
+            }
+
+            private String author(long bookId) { Book b = books.find(bookId); return b == null ? null : b.author; }
+
+            CirculationStats stats() { return stats; }
+
+            void reload() { reset(store.loadLoans(), store.loadHolds()); }
+
+            void reset(LoanTable active, List<Hold> hs) {
+                loans.reset(active);
+                holds.reset(hs);
+                store.holdIds().start(hs.isEmpty() ? 0 : hs.get(hs.size() - 1).id);
+                // returned loans only live in the archive; a directory from before loans.seq has it scanned once so
+                // none of their ids is handed out again
+                long highest = Math.max(active.maxId(), 5000L);
+                if (!store.loanIds().persisted()) {
+                    long[] max = {highest};
+                    store.archive().scan(store.archive().sizes(), run -> max[0] = Math.max(max[0], run.maxId()));
+                    highest = max[0];
+                }
+                store.loanIds().start(highest);
+            }
+
+            // Replicas: a loan row as the primary logged it. A new active loan is indexed; a return drops it.
+            void applyLoan(long id, long bookId, String username, LocalDate issue, LocalDate due, LocalDate ret) {
+                synchronized (books.lockFor(bookId)) {
+                    Loan l = loans.get(id);
+                    if (ret == null) { if (l == null) loans.restore(id, bookId, username, (int) issue.toEpochDay(), (int) due.toEpochDay()); }
+                    else if (l != null && !l.isReturned()) { loans.returned(l, ret); loans.evict(l); }
+                }
+            }
+
+            void applyHold(Hold h) {
+                synchronized (books.lockFor(h.bookId)) {
+                    Hold old = holds.get(h.id);
+                    if (old != null) holds.remove(old);
+                    holds.add(h);
+                }
+            }
+
+            void applyHoldRemove(long id) {
+                Hold h = holds.get(id);
+                if (h != null) synchronized (books.lockFor(h.bookId)) { if (holds.get(id) == h) holds.remove(h); }
+            }
+
+            // Active loans followed by every archived one; the latter reads the whole archive
+            List<Loan> all() {
+                List<Loan> out = loans.all();
+                out.addAll(store.archive().all());
+                return out;
+            }
+
+            List<Loan> active() { return loans.all(); }
+
+            enum Sort { ID, DUE }
+
+            // Active loans only; returned ones are read by month from the archive
+            Page<Loan> page(Sort sort, String cursor, int limit) { return sort == Sort.DUE ? loans.pageByDue(cursor, limit) : loans.pageById(cursor, limit); }
+
+            // Returned loans of one user, read from the archive on demand
+            List<Loan> history(String username) { return store.archive().forUser(username); }
+
+            List<Loan> returnedBetween(YearMonth from, YearMonth to) { return store.archive().returnedBetween(from, to); }
+
+            Loan find(long loanId) {
+                long t0 = System.nanoTime();
+                Loan l = loans.get(loanId);
+                if (l == null) Metrics.LOAN_FIND.miss();
+                Metrics.LOAN_FIND.record(t0);
+                return l;
+            }
+
+            List<Loan> activeForUser(String username) { return new ArrayList<>(loans.activeForUser(username)); }
+
+            List<Loan> activeForBook(long bookId) { return new ArrayList<>(loans.activeForBook(bookId)); }
+
+            boolean hasActive(String username) { return !loans.activeForUser(username).isEmpty(); }
+
+            // Active loans past their due date on asOf, most overdue first; costs the number of overdue loans
+            List<Loan> overdue(LocalDate asOf) { return loans.dueBefore((int) asOf.toEpochDay()); }
+
+            // What the loan would be fined if it came back on the given day
+            double fine(Loan l, LocalDate on) {
+                long overdue = ChronoUnit.DAYS.between(l.dueDate(), on);
+                return overdue > 0 ? overdue * finePerDay : 0.0;
+            }
+
+            double projectedFine(String username, LocalDate asOf) {
+                double sum = 0;
+                for (Loan l : loans.activeForUser(username)) sum += fine(l, asOf);
+                return sum;
+            }
+
+            // Projected fine of every user with an overdue loan, summed in parallel over the overdue loans
+            Map<String, Double> projectedFines(LocalDate asOf) {
+                Map<String, Double> fines = new ConcurrentHashMap<>();
+                overdue(asOf).parallelStream().forEach(l -> {
+                    try { fines.merge(l.username(), fine(l, asOf), Double::sum); }
+                    catch (IllegalArgumentException e) { /* returned meanwhile; its fine was settled on return */ }
+                });
+                return new TreeMap<>(fines);
+            }
+
+            // The nightly batch: fines outstanding as of asOf, kept as data/fines/fines-<date>.csv
+            Map<String, Double> accrueFines(LocalDate asOf) {
+                Map<String, Double> fines = projectedFines(asOf);
+                store.saveFines(asOf, fines);
+                return fines;
+            }
+
+            // Shortly after every midnight: accrueFines for the new day, then expireHolds
+            void scheduleNightly() {
+                ScheduledExecutorService nightly = Executors.newSingleThreadScheduledExecutor(r -> { Thread t = new Thread(r, "nightly"); t.setDaemon(true); return t; });
+                long untilMidnight = Duration.between(LocalDateTime.now(), LocalDate.now().plusDays(1).atStartOfDay()).toMillis() + 1000;
+                nightly.scheduleAtFixedRate(() -> {
+                    try { accrueFines(LocalDate.now()); }
+                    catch (RuntimeException e) { System.err.println("Fine accrual failed: " + e.getMessage()); }
+                    try { expireHolds(LocalDate.now()); }
+                    catch (RuntimeException e) { System.err.println("Hold expiry failed: " + e.getMessage()); }
+                }, untilMidnight, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+            }
+
+            // Joins the book's waiting list. Only while no copy is on the shelf; otherwise it can simply be borrowed.
+            Hold placeHold(long bookId, String username) {
+                long t0 = System.nanoTime();
+                try { return books.change(bookId, () -> {
+                    Book b = books.find(bookId); if (b==null) throw new IllegalArgumentException("Book not found");
+                    if (b.availableCopies > 0) throw new IllegalArgumentException("Copies available, borrow it instead");
+                    if (holds.holding(bookId, username) != null) throw new IllegalArgumentException("Already on hold");
+                    for (Loan l : loans.activeForBook(bookId)) if (l.username().equals(username)) throw new IllegalArgumentException("Already borrowed"); // stable under the lock
+                    Hold h = new Hold(store.holdIds().next(), bookId, username, LocalDate.now(), null);
+                    holds.add(h);
+                    store.putHold(h);
+                    return h;
+                }); } catch (RuntimeException e) { Metrics.HOLD_PLACE.error(); throw e; }
+                finally { Metrics.HOLD_PLACE.record(t0); }
+            }
+
+            // Leaves the waiting list, or gives up a set-aside copy, which goes on to the next holder. A non-null
+            // username must own the hold; admins pass null.
+            void cancelHold(long holdId, String username) {
+                long t0 = System.nanoTime();
+                try {
+                    Hold h = holds.get(holdId);
+                    if (h == null || (username != null && !h.username.equals(username))) throw new IllegalArgumentException("Hold not found");
+                    books.change(h.bookId, () -> {
+                        if (holds.get(holdId) != h) throw new IllegalArgumentException("Hold not found"); // collected or cancelled meanwhile
+                        drop(h, LocalDate.now());
+                        return null;
+                    });
+                } catch (RuntimeException e) { Metrics.HOLD_CANCEL.error(); throw e; }
+                finally { Metrics.HOLD_CANCEL.record(t0); }
+            }
+
+            // Every hold of a user, e.g. when they deregister
+            void cancelHolds(String username) {
+                for (Hold h : new ArrayList<>(holds.forUser(username))) books.change(h.bookId, () -> {
+                    if (holds.get(h.id) == h) drop(h, LocalDate.now());
+                    return null;
+                });
+            }
+
+            // Copies set aside but not borrowed by the end of their pickup day go on to the next holder, or back on
+            // the shelf; costs the number of expired holds
+            int expireHolds(LocalDate today) {
+                long t0 = System.nanoTime();
+                int n = 0;
+                for (Hold h : holds.readyBefore((int) today.toEpochDay())) {
+                    boolean dropped = books.change(h.bookId, () -> {
+                        if (holds.get(h.id) != h) return false;
+                        drop(h, today);
+                        return true;
+                    });
+                    if (dropped) n++;
+                }
+                Metrics.HOLD_EXPIRE.record(t0);
+                return n;
+            }
+
+            List<Hold> holdsForUser(String username) { return new ArrayList<>(holds.forUser(username)); }
+            List<Hold> holds() { return holds.all(); }
+
+            int waitingFor(long bookId) { synchronized (books.lockFor(bookId)) { return holds.waiting(bookId); } }
+
+            // Under the book's lock
+            private void drop(Hold h, LocalDate today) {
+                holds.remove(h);
+                store.removeHold(h);
+                if (h.isReady()) passOn(h.bookId, today);
+            }
+
+            // A copy came free: set it aside for the next holder, or put it back on the shelf. Under the book's lock.
+            private void passOn(long bookId, LocalDate today) {
+                Hold next = holds.allocate(bookId, today.plusDays(pickupDays));
+                if (next == null) books.changeAvailable(bookId, +1);
+                else store.putHold(next);
+            }
+
+            // Copies added to the catalog go to waiting holders, oldest first. Under the book's lock.
+            private int restock(long bookId, int copies) {
+                LocalDate pickupBy = LocalDate.now().plusDays(pickupDays);
+                int n = 0;
+                for (Hold next; n < copies && (next = holds.allocate(bookId, pickupBy)) != null; n++) store.putHold(next);
+                return n;
+            }
+
+            // A holder borrows the copy set aside for them; anyone else needs one on the shelf
+            Loan issue(long bookId, String username) {
+                long t0 = System.nanoTime();
+                LocalDate issue = LocalDate.now();
+                try {
+                    Loan loan = books.change(bookId, () -> {
+                        Book b = books.find(bookId); if (b==null) throw new IllegalArgumentException("Book not found");
+                        Hold hold = holds.holding(bookId, username);
+                        boolean setAside = hold != null && hold.isReady();
+                        if (!setAside && b.availableCopies <= 0) throw new IllegalArgumentException("No copies available, place a hold");
+                        LocalDate due = issue.plusDays(loanDays);
+                        Loan l = loans.add(store.loanIds(), bookId, username, issue, due);
+                        if (!setAside) books.changeAvailable(bookId, -1);
+                        if (hold != null) { holds.remove(hold); store.removeHold(hold); } // fulfilled, or no longer needed
+                        store.putLoan(l);
+                        return l;
+                    });
+                    // the sketches have monitors of their own, so they are fed after the book's lock is released
+                    stats.issued(bookId, author(bookId), username, (int) issue.toEpochDay());
+                    return loan;
+                } catch (RuntimeException e) { Metrics.LOAN_ISSUE.error(); throw e; }
+                finally { Metrics.LOAN_ISSUE.record(t0); }
+            }
+
+            double returnBook(long loanId) {
+                long t0 = System.nanoTime();
+                try { return returnLoan(loanId); }
+                catch (RuntimeException e) { Metrics.LOAN_RETURN.error(); throw e; }
+                finally { Metrics.LOAN_RETURN.record(t0); }
+            }
+
+            private double returnLoan(long loanId) {
+                Loan l = loans.get(loanId);
+                if (l==null) throw new IllegalArgumentException("Loan not found or already returned");
+                LocalDate ret = LocalDate.now();
+                int issued = (int) l.issueDate().toEpochDay();
+                double charged = books.change(l.bookId(), () -> {
+                    // a concurrent return may have archived the loan and recycled its row before we got the lock
+                    if (l.isReturned()) throw new IllegalArgumentException("Already returned");
+                    double fine = fine(l, ret);
+                    loans.returned(l, ret);
+                    passOn(l.bookId(), ret);
+                    store.putLoan(l);
+                    loans.evict(l);
+                    return fine;
+                });
+                stats.returned(issued, (int) ret.toEpochDay()); // outside the lock, as in issue
+                return charged;
+            }
+
+        }
+
+        // ===== Circulation analytics =====
+        // Space-Saving heavy-hitter summary over at most capacity counters. A new key arriving when all are taken
+        // replaces the smallest counter and inherits its count, which is recorded as that key's possible overcount;
+        // any key seen more than total/capacity times is guaranteed to be held.
+        static final class SpaceSaving<K> {
+            private final int capacity;
+            private final Map<K, long[]> counters = new HashMap<>(); // key -> {count, overcount}
+            private final TreeMap<Long, Set<K>> byCount = new TreeMap<>(); // so the smallest counter is found in O(log capacity)
+            private long total;
+
+            SpaceSaving(int capacity) { this.capacity = capacity; }
+
+            synchronized void add(K key, long n) {
+                total += n;
+                long[] c = counters.get(key);
+                if (c != null) unlink(key, c[0]);
+                else {
+                    long floor = 0;
+                    if (counters.size() >= capacity) {
+                        Map.Entry<Long, Set<K>> min = byCount.firstEntry();
+                        K evicted = min.getValue().iterator().next();
+                        unlink(evicted, min.getKey());
+                        counters.remove(evicted);
+                        floor = min.getKey();
+                    }
+                    counters.put(key, c = new long[]{floor, floor});
+                }
+                c[0] += n;
+                byCount.computeIfAbsent(c[0], k -> new HashSet<>()).add(key);
+            }
+
+            private void unlink(K key, long count) {
+                Set<K> keys = byCount.get(count);
+                keys.remove(key);
+                if (keys.isEmpty()) byCount.remove(count);
+            }
+
+            synchronized void addTo(Map<K, Long> out) { counters.forEach((k, c) -> out.merge(k, c[0], Long::sum)); }
+
+            synchronized long total() { return total; }
+
+            List<Map.Entry<K, Long>> top(int n) {
+                Map<K, Long> m = new HashMap<>();
+                addTo(m);
+                return top(m, n);
+            }
+
+            static <K> List<Map.Entry<K, Long>> top(Map<K, Long> counts, int n) {
+                return counts.entrySet().stream().sorted(Map.Entry.<K, Long>comparingByValue().reversed()).limit(n).collect(Collectors.toList());
+            }
+        }
+
+        // Circulation counters kept up to date from issue and return events, so a dashboard never reads loan history:
+        // the most borrowed books per day in small sketches (a window merges at most WINDOW_DAYS of them), all-time top
+        // books and authors in larger ones, exact borrow counts per user and the total length of returned loans.
+        // Memory is bounded by the sketch sizes plus one counter per user.
+        static final class CirculationStats {
+            static final int WINDOW_DAYS = 30, DAY_CAPACITY = 256, ALL_TIME_CAPACITY = 4096;
+            private final ConcurrentNavigableMap<Integer, SpaceSaving<Long>> byDay = new ConcurrentSkipListMap<>(); // issue epoch day
+            private final SpaceSaving<Long> books = new SpaceSaving<>(ALL_TIME_CAPACITY);
+            private final SpaceSaving<String> authors = new SpaceSaving<>(ALL_TIME_CAPACITY);
+            private final ConcurrentMap<String, LongAdder> users = new ConcurrentHashMap<>();
+            private final LongAdder returns = new LongAdder(), loanDays = new LongAdder();
+            private volatile boolean ready = true; // false while history is being folded in
+
+            // author is null for a book no longer in the catalog
+            void issued(long bookId, String author, String username, int issueDay) {
+                int today = (int) LocalDate.now().toEpochDay();
+                if (issueDay > today - WINDOW_DAYS) {
+                    byDay.computeIfAbsent(issueDay, d -> new SpaceSaving<>(DAY_CAPACITY)).add(bookId, 1);
+                    if (byDay.firstKey() <= today - WINDOW_DAYS) byDay.headMap(today - WINDOW_DAYS, true).clear();
+                }
+                books.add(bookId, 1);
+                if (author != null) authors.add(author, 1);
+                users.computeIfAbsent(username, u -> new LongAdder()).increment();
+            }
+
+            void returned(int issueDay, int returnDay) { returns.increment(); loanDays.add(returnDay - issueDay); }
+
+            // Most borrowed books issued in the last days days (1..WINDOW_DAYS, today included), or all time for days <= 0
+            List<Map.Entry<Long, Long>> topBooks(int days, int n) {
+                if (days <= 0) return books.top(n);
+                if (days > WINDOW_DAYS) throw new IllegalArgumentException("Window is at most " + WINDOW_DAYS + " days");
+                Map<Long, Long> counts = new HashMap<>();
+                for (SpaceSaving<Long> day : byDay.tailMap((int) LocalDate.now().toEpochDay() - days, false).values()) day.addTo(counts);
+                return SpaceSaving.top(counts, n);
+            }
+
+            List<Map.Entry<String, Long>> topAuthors(int n) { return authors.top(n); }
+
+            long borrows(String username) { LongAdder a = users.get(username); return a == null ? 0 : a.sum(); }
+
+            long loansIssued() { return books.total(); }
+
+            double averageLoanDays() { long n = returns.sum(); return n == 0 ? 0 : (double) loanDays.sum() / n; }
+
+            boolean ready() { return ready; }
+
+            void rebuilding(boolean r) { ready = !r; }
+        }
+
+        // ===== Replication =====
+        // A primary streams its journal records over a loopback socket to replica processes, which apply them to
+        // their own in-memory services and answer read-only queries. A new replica first gets the whole current
+        // state as records, then every record logged after it subscribed; records are full-row upserts or deletes,
+        // so one already reflected in the state copy is harmless to apply again.
+        //
+        // Frames from the primary: kind, lsn, primary clock millis, and for S and R a length-prefixed UTF-8 record.
+        // S = state record, E = end of state, R = logged record, K = heartbeat. A replica answers each heartbeat with
+        // the last lsn it applied. One whose backlog passes MAX_BACKLOG frames is dropped; it reconnects and starts
+        // over from a fresh state copy, so the primary never buffers more than that per replica.
+        static final class ReplicationSource {
+            static final int MAX_BACKLOG = 100_000;
+            static final long HEARTBEAT_MILLIS = 100;
+            private final CsvStore store;
+            private final ServerSocket server;
+            private final List<Follower> followers = new CopyOnWriteArrayList<>();
+            private long lsn; // records logged since this source started; guarded by this
+
+            ReplicationSource(CsvStore store, int port) throws IOException {
+                this.store = store;
+                this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            }
+
+            void start() {
+                store.shipTo(this);
+                daemon("replication-accept", this::acceptLoop).start();
+                ScheduledExecutorService beat = Executors.newSingleThreadScheduledExecutor(r -> daemon("replication-heartbeat", r));
+                beat.scheduleAtFixedRate(this::heartbeat, HEARTBEAT_MILLIS, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            static Thread daemon(String name, Runnable r) { Thread t = new Thread(r, name); t.setDaemon(true); return t; }
+
+            private void acceptLoop() {
+                while (!server.isClosed()) {
+                    try { Socket s = server.accept(); s.setTcpNoDelay(true); new Follower(s).start(); }
+                    catch (IOException e) { if (!server.isClosed()) System.err.println("Replica connection failed: " + e.getMessage()); }
+                }
+            }
+
+            // Called by the store under its lock, in log order; never blocks
+            synchronized void ship(List<String> records) {
+                if (followers.isEmpty()) { lsn += records.size(); return; }
+                long now = System.currentTimeMillis();
+                for (String r : records) {
+                    Frame f = new Frame('R', ++lsn, now, r);
+                    for (Follower fo : followers) fo.offer(f);
+                }
+            }
+
+            private synchronized void heartbeat() {
+                if (followers.isEmpty()) return;
+                Frame f = new Frame('K', lsn, System.currentTimeMillis(), null);
+                for (Follower fo : followers) fo.offer(f);
+            }
+
+            // Records logged from the returned lsn on reach the follower through its backlog
+            private synchronized long subscribe(Follower f) { followers.add(f); return lsn; }
+
+            synchronized long lsn() { return lsn; }
+
+            List<Follower> followers() { return new ArrayList<>(followers); }
+
+            void stop() {
+                try { server.close(); } catch (IOException e) { /* closing anyway */ }
+                for (Follower f : followers) f.close("primary stopping");
+            }
+
+            static final class Frame {
+                final byte kind;
+                final long lsn, millis;
+                final byte[] record; // null for E and K
+
+                Frame(char kind, long lsn, long millis, String record) {
+                    this.kind = (byte) kind; this.lsn = lsn; this.millis = millis;
+                    this.record = record == null ? null : record.getBytes(StandardCharsets.UTF_8);
+                }
+
+                void write(DataOutputStream out) throws IOException {
+                    out.writeByte(kind); out.writeLong(lsn); out.writeLong(millis);
+                    if (record != null) { out.writeInt(record.length); out.write(record); }
+                }
+            }
+
+            // One connected replica: a sender thread draining its backlog and a reader taking its acknowledgements
+            final class Follower {
+                private final Socket socket;
+                private final BlockingQueue<Frame> backlog = new ArrayBlockingQueue<>(MAX_BACKLOG);
+                private final AtomicBoolean closed = new AtomicBoolean();
+                private Thread sender;
+                volatile long ackedLsn, ackedMillis; // the last heartbeat the replica applied, by primary clock
+
+                Follower(Socket socket) { this.socket = socket; }
+
+                String address() { return socket.getRemoteSocketAddress().toString(); }
+
+                void start() {
+                    sender = daemon("replication-send " + address(), this::send);
+                    sender.start();
+                    daemon("replication-ack " + address(), this::readAcks).start();
+                }
+
+                void offer(Frame f) { if (!backlog.offer(f)) close("more than " + MAX_BACKLOG + " records behind"); }
+
+                private void send() {
+                    try {
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                        long from = subscribe(this);
+                        long now = System.currentTimeMillis();
+                        for (String r : store.records()) new Frame('S', from, now, r).write(out);
+                        new Frame('E', from, now, null).write(out);
+                        while (!closed.get()) {
+                            Frame f = backlog.poll();
+                            if (f == null) { out.flush(); f = backlog.take(); }
+                            f.write(out);
+                        }
+                    } catch (IOException e) { close(e.getMessage()); }
+                    catch (InterruptedException e) { close("stopped"); }
+                }
+
+                private void readAcks() {
+                    try {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        while (!closed.get()) { long l = in.readLong(); ackedMillis = in.readLong(); ackedLsn = l; }
+                    } catch (IOException e) { close("disconnected"); }
+                }
+
+                void close(String reason) {
+                    if (!closed.compareAndSet(false, true)) return;
+                    followers.remove(this);
+                    try { socket.close(); } catch (IOException e) { /* already gone */ }
+                    if (sender != null) sender.interrupt();
+                    System.err.println("Replica " + address() + " dropped: " + reason);
+                }
+            }
+        }
+
+        // The replica side: keeps its services in step with a primary on this machine and reports how far behind it
+        // is. It writes nothing; a restarted replica simply takes a fresh state copy.
+        static final class Replica {
+            static final long DEFAULT_MAX_LAG_MILLIS = 2000;
+            static final long RETRY_MILLIS = 500;
+            private final int port;
+            private final CsvStore store; // only parses records
+            private final BookService books;
+            private final UserService users;
+            private final LoanService loans;
+            final long maxLagMillis;
+            private volatile long appliedLsn;
+            private volatile long primaryMillis; // primary clock time of the newest frame applied; 0 until a state copy is in
+            private volatile boolean connected;
+
+            Replica(int port, CsvStore store, BookService books, UserService users, LoanService loans, long maxLagMillis) {
+                this.port = port; this.store = store; this.books = books; this.users = users; this.loans = loans; this.maxLagMillis = maxLagMillis;
+            }
+
+            void start() { ReplicationSource.daemon("replica", this::follow).start(); }
+
+            // Reconnects for as long as the process runs
+            private void follow() {
+                while (true) {
+                    try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        s.setTcpNoDelay(true);
+                        connected = true;
+                        stream(new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16)), new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+                    } catch (IOException | RuntimeException e) {
+                        if (connected) System.err.println("Lost the primary: " + e);
+                    }
+                    connected = false;
+                    try { Thread.sleep(RETRY_MILLIS); } catch (InterruptedException e) { return; }
+                }
+            }
+
+            private void stream(DataInputStream in, DataOutputStream out) throws IOException {
+                primaryMillis = 0;
+                List<String[]> state = new ArrayList<>();
+                while (true) {
+                    byte kind = in.readByte();
+                    long lsn = in.readLong(), millis = in.readLong();
+                    String record = null;
+                    if (kind == 'S' || kind == 'R') {
+                        byte[] b = new byte[in.readInt()];
+                        in.readFully(b);
+                        record = new String(b, StandardCharsets.UTF_8);
+                    }
+                    switch (kind) {
+                        case 'S': state.add(CsvStore.splitCsv(record)); break;
+                        case 'E': load(state); state = new ArrayList<>(); break;
+                        case 'R': apply(CsvStore.splitCsv(record)); break;
+                        case 'K': out.writeLong(lsn); out.writeLong(millis); out.flush(); break;
+                        default: throw new IOException("Unknown frame " + kind);
+                    }
+                    if (kind != 'S') { appliedLsn = lsn; primaryMillis = millis; }
+                }
+            }
+
+            private void load(List<String[]> state) {
+                List<Book> bs = new ArrayList<>();
+                List<User> us = new ArrayList<>();
+                LoanTable ls = new LoanTable();
+                List<Hold> hs = new ArrayList<>();
+                for (String[] p : state) switch (p[0]) {
+                    case "B": bs.add(store.parseBook(p, 1)); break;
+                    case "U": us.add(store.parseUser(p, 1)); break;
+                    case "L": store.parseLoan(p, 1, ls); break;
+                    case "H": hs.add(store.parseHold(p, 1)); break;
+                    default: throw new IllegalStateException("Unexpected state record " + p[0]);
+                }
+                books.reset(bs); users.reset(us); loans.reset(ls, hs);
+            }
+
+            private void apply(String[] p) {
+                switch (p[0]) {
+                    case "B": books.apply(store.parseBook(p, 1)); break;
+                    case "b": books.applyRemove(Long.parseLong(p[1])); break;
+                    case "U": users.apply(store.parseUser(p, 1)); break;
+                    case "u": users.applyRemove(p[1]); break;
+                    case "L": {
+                        LocalDate ret = p.length > 6 && !p[6].isEmpty() ? LocalDate.parse(p[6]) : null;
+                        loans.applyLoan(Long.parseLong(p[1]), Long.parseLong(p[2]), p[3], LocalDate.parse(p[4]), LocalDate.parse(p[5]), ret);
+                        break;
+                    }
+                    case "H": loans.applyHold(store.parseHold(p, 1)); break;
+                    case "h": loans.applyHoldRemove(Long.parseLong(p[1])); break;
+                    default: throw new IllegalStateException("Unexpected record " + p[0]);
+                }
+            }
+
+            // How stale answers may be: time since the newest primary frame applied, heartbeats included
+            long lagMillis() { long t = primaryMillis; return t == 0 ? Long.MAX_VALUE : Math.max(0, System.currentTimeMillis() - t); }
+
+            boolean fresh() { return lagMillis() <= maxLagMillis; }
+
+            long appliedLsn() { return appliedLsn; }
+
+            boolean connected() { return connected; }
+        }
+
+        // ===== Console UI =====
+        static class ConsoleApp {
+            static final int IMPORT_BATCH = 10_000;
+            static final int PAGE_SIZE = 20;
+            private final Scanner sc = new Scanner(System.in);
+            private final UserService users;
+            private final BookService books;
+            private final LoanService loans;
+            private String currentUser;
+
+            ConsoleApp(UserService users, BookService books, LoanService loans) {
+                this.users = users; this.books = books; this.loans = loans;
+            }
+
+            void run() {
+                System.out.println("Simple Library Management System");
+                while (true) {
+                    if (currentUser == null) {
+                        System.out.println("\n1) Login\n2) Register\n0) Exit");
+                        System.out.print("Choose: ");
+                        String c = sc.nextLine().trim();
+                        switch (c) {
+                            case "1": login(); break;
+                            case "2": register(); break;
+                            case "0": System.out.println("Bye"); return;
+                            default: System.out.println("Invalid");
+                        }
+                    } else {
+                        showMainMenu();
+                    }
+                }
+            }
+
+            private void login() {
+                System.out.print("Username: "); String u = sc.nextLine().trim();
+                System.out.print("Password: "); String p = sc.nextLine().trim();
+                if (users.authenticate(u, p)) { currentUser = u; System.out.println("Welcome, " + u); }
+                else System.out.println("Auth failed");
+            }
+
+            private void register() {
+                System.out.print("Choose username: "); String u = sc.nextLine().trim();
+                System.out.print("Full name: "); String name = sc.nextLine().trim();
+                System.out.print("Password: "); String p = sc.nextLine().trim();
+                try {
+                    boolean ok = users.addUser(u, p, name);
+                    System.out.println(ok?"Registered. You may login.":"Username exists.");
+                } catch (IllegalArgumentException e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void logout() { currentUser = null; System.out.println("Logged out."); }
+
+            private void showMainMenu() {
+                System.out.println("\n-- Main Menu (logged in as: " + currentUser + ") --");
+                System.out.println("1) Browse Books\n2) My Loans\n3) Borrow Book\n4) Return Book\n5) Account (deregister)\n6) Admin Panel (admin only)\n7) Logout\n8) Search Books\n9) My Holds\n0) Exit");
+                System.out.print("Choose: ");
+                String c = sc.nextLine().trim();
+                switch (c) {
+                    case "1": listBooks(); break;
+                    case "2": myLoans(); break;
+                    case "3": borrow(); break;
+                    case "4": returnBook(); break;
+                    case "5": deregister(); break;
+                    case "6": adminPanel(); break;
+                    case "7": logout(); break;
+                    case "8": searchBooks(); break;
+                    case "9": myHolds(); break;
+                    case "0": System.out.println("Bye"); System.exit(0); break;
+                    default: System.out.println("Invalid");
+                }
+            }
+
+            private void listBooks() {
+                System.out.print("Sort by 1) id 2) title 3) author [1]: "); String c = sc.nextLine().trim();
+                BookService.Sort sort = c.equals("2") ? BookService.Sort.TITLE : c.equals("3") ? BookService.Sort.AUTHOR : BookService.Sort.ID;
+                System.out.println("ID | Title | Author | Available/Total");
+                pageThrough(cursor -> books.page(sort, cursor, PAGE_SIZE),
+                        b -> System.out.printf("%d | %s | %s | %d/%d%n", b.id, b.title, b.author, b.availableCopies, b.totalCopies));
+            }
+
+            // Prints a page at a time until the listing ends or the user stops it
+            private <T> void pageThrough(Function<String, Page<T>> fetch, Consumer<T> print) {
+                String cursor = null;
+                while (true) {
+                    Page<T> p = fetch.apply(cursor);
+                    p.items.forEach(print);
+                    if ((cursor = p.next) == null) return;
+                    System.out.print("-- Enter for more, q to stop: ");
+                    if (sc.nextLine().trim().equalsIgnoreCase("q")) return;
+                }
+            }
+
+            private void searchBooks() {
+                System.out.print("Search title/author: "); String q = sc.nextLine().trim();
+                List<Book> hits = books.search(q, 20);
+                if (hits.isEmpty()) { System.out.println("No matches."); return; }
+                System.out.println("ID | Title | Author | Available/Total");
+                for (Book b : hits) System.out.printf("%d | %s | %s | %d/%d%n", b.id, b.title, b.author, b.availableCopies, b.totalCopies);
+            }
+
+            private void myLoans() {
+                List<Loan> my = loans.activeForUser(currentUser);
+                if (my.isEmpty()) { System.out.println("No active loans."); return; }
+                System.out.println("LoanID | BookID | Title | Issue | Due");
+                for (Loan l : my) {
+                    Book b = books.find(l.bookId());
+                    System.out.printf("%d | %d | %s | %s | %s%n", l.id(), l.bookId(), b==null?"#"+l.bookId():b.title, l.issueDate(), l.dueDate());
+                }
+            }
+
+            private void borrow() {
+                try {
+                    System.out.print("Enter Book ID to borrow: "); long id = Long.parseLong(sc.nextLine().trim());
+                    Book b = books.find(id);
+                    if (b != null && b.availableCopies <= 0 && loans.holdsForUser(currentUser).stream().noneMatch(h -> h.bookId == id && h.isReady())) {
+                        System.out.print("No copies available. Place a hold? (y/N): ");
+                        if (!sc.nextLine().trim().equalsIgnoreCase("y")) return;
+                        Hold h = loans.placeHold(id, currentUser);
+                        System.out.println("Hold placed. ID: " + h.id + ", people waiting: " + loans.waitingFor(id));
+                        return;
+                    }
+                    Loan l = loans.issue(id, currentUser);
+                    System.out.println("Issued. Loan ID: " + l.id() + ", due: " + l.dueDate());
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void myHolds() {
+                List<Hold> my = loans.holdsForUser(currentUser);
+                if (my.isEmpty()) { System.out.println("No holds."); return; }
+                System.out.println("HoldID | BookID | Title | Placed | Status");
+                for (Hold h : my) {
+                    Book b = books.find(h.bookId);
+                    System.out.printf("%d | %d | %s | %s | %s%n", h.id, h.bookId, b==null?"#"+h.bookId:b.title, h.placed, h.isReady() ? "ready, borrow by " + h.pickupBy : "waiting");
+                }
+                System.out.print("Hold ID to cancel (Enter to go back): "); String c = sc.nextLine().trim();
+                if (c.isEmpty()) return;
+                try { loans.cancelHold(Long.parseLong(c), currentUser); System.out.println("Hold cancelled."); }
+                catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void returnBook() {
+                try {
+                    System.out.print("Enter Loan ID to return: "); long id = Long.parseLong(sc.nextLine().trim());
+                    double fine = loans.returnBook(id);
+                    if (fine > 0) System.out.println("Returned. Late fee: " + String.format("%.2f", fine));
+                    else System.out.println("Returned on time. No fee.");
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void deregister() {
+                System.out.print("Confirm deregister account (type DELETE): "); String c = sc.nextLine().trim();
+                if (!c.equals("DELETE")) { System.out.println("Cancelled."); return; }
+                boolean ok = users.deleteUser(currentUser, loans);
+                if (ok) { System.out.println("Account removed."); currentUser = null; }
+                else System.out.println("Cannot deregister: active loans exist or error.");
+            }
+
+            private void adminPanel() {
+                if (!currentUser.equals("admin")) { System.out.println("Admin access only."); return; }
+                while (true) {
+                    System.out.println("\n-- Admin Panel --\n1) Add Book\n2) Update Book\n3) Delete Book\n4) List Users\n5) List Loans\n6) Overdue & Fines\n7) Bulk Import Books\n8) Circulation Stats\n0) Back");
+                    System.out.print("Choose: "); String c = sc.nextLine().trim();
+                    switch (c) {
+                        case "1": addBook(); break;
+                        case "2": updateBook(); break;
+                        case "3": deleteBook(); break;
+                        case "4": listUsers(); break;
+                        case "5": listAllLoans(); break;
+                        case "6": overdueReport(); break;
+                        case "7": importBooks(); break;
+                        case "8": circulationStats(); break;
+                        case "0": return;
+                        default: System.out.println("Invalid");
+                    }
+                }
+            }
+
+            private void addBook() {
+                try {
+                    System.out.print("Title: "); String t = sc.nextLine().trim();
+                    System.out.print("Author: "); String a = sc.nextLine().trim();
+                    System.out.print("Copies: "); int c = Integer.parseInt(sc.nextLine().trim());
+                    Book b = books.create(t, a, c);
+                    System.out.println("Added book ID: " + b.id);
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void updateBook() {
+                try {
+                    System.out.print("Book ID: "); long id = Long.parseLong(sc.nextLine().trim());
+                    Book b = books.find(id); if (b==null) { System.out.println("Not found"); return; }
+                    System.out.print("New title (blank keep): "); String t = sc.nextLine();
+                    System.out.print("New author (blank keep): "); String a = sc.nextLine();
+                    System.out.print("New total copies (blank keep): "); String tc = sc.nextLine();
+                    Integer tot = tc.isBlank()?null:Integer.parseInt(tc);
+                    boolean ok = books.update(id, t.isBlank()?null:t, a.isBlank()?null:a, tot);
+                    System.out.println(ok?"Updated":"Failed");
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void deleteBook() {
+                try {
+                    System.out.print("Book ID to delete: "); long id = Long.parseLong(sc.nextLine().trim());
+                    boolean ok = books.delete(id);
+                    System.out.println(ok?"Deleted":"Cannot delete (may have active loans or holds, or not exist)");
+                } catch (Exception e) { System.out.println("Error: " + e.getMessage()); }
+            }
+
+            private void listUsers() {
+                System.out.println("Username | Full Name");
+                pageThrough(cursor -> users.page(cursor, PAGE_SIZE), u -> System.out.println(u.username + " | " + u.fullName));
+            }
+
+            // Active loans a page at a time; returned ones live in the archive (GET /loans/history)
+            private void listAllLoans() {
+                System.out.print("Sort by 1) id 2) due date [1]: "); String c = sc.nextLine().trim();
+                LoanService.Sort sort = c.equals("2") ? LoanService.Sort.DUE : LoanService.Sort.ID;
+                System.out.println("LoanID | BookID | User | Issue | Due");
+                pageThrough(cursor -> loans.page(sort, cursor, PAGE_SIZE),
+                        l -> System.out.printf("%d | %d | %s | %s | %s%n", l.id(), l.bookId(), l.username(), l.issueDate(), l.dueDate()));
+            }
+
+            private void importBooks() {
+                System.out.print("CSV file (title,author[,copies]): "); String f = sc.nextLine().trim();
+                Path src = Paths.get(f);
+                if (!Files.isRegularFile(src)) { System.out.println("No such file"); return; }
+                Path rejects = Paths.get("data", "import-rejects.csv");
+                ImportReport r = books.importCsv(src, rejects, IMPORT_BATCH, p -> System.out.println("  ... " + p));
+                System.out.println("Done: " + r + ". Rejected rows: " + r.rejects);
+            }
+
+            private void overdueReport() {
+                try {
+                    System.out.print("As of (YYYY-MM-DD, blank for today): "); String d = sc.nextLine().trim();
+                    LocalDate asOf = d.isEmpty() ? LocalDate.now() : LocalDate.parse(d);
+                    System.out.println("LoanID | BookID | User | Due | Fine");
+                    for (Loan l : loans.overdue(asOf)) System.out.printf("%d | %d | %s | %s | %.2f%n", l.id(), l.bookId(), l.username(), l.dueDate(), loans.fine(l, asOf));
+                    System.out.println("User | Projected fine");
+                    loans.projectedFines(asOf).forEach((u, f) -> System.out.printf("%s | %.2f%n", u, f));
+                } catch (DateTimeException e) { System.out.println("Invalid date"); }
+            }
+
+            private void circulationStats() {
+                CirculationStats st = loans.stats();
+                if (!st.ready()) System.out.println("(still counting archived loans, figures are partial)");
+                for (int days : new int[]{1, 7, CirculationStats.WINDOW_DAYS, 0}) {
+                    System.out.println(days > 0 ? "Most borrowed, last " + days + " day(s):" : "Most borrowed, all time:");
+                    for (Map.Entry<Long, Long> e : st.topBooks(days, 10)) {
+                        Book b = books.find(e.getKey());
+                        System.out.printf("  %d | %s | %d%n", e.getKey(), b == null ? "(deleted)" : b.title, e.getValue());
+                    }
+                }
+                System.out.println("Most borrowed authors:");
+                for (Map.Entry<String, Long> e : st.topAuthors(10)) System.out.printf("  %s | %d%n", e.getKey(), e.getValue());
+                System.out.printf("Loans issued: %d, average loan: %.1f days%n", st.loansIssued(), st.averageLoanDays());
+                System.out.print("Borrow count for user (Enter to skip): "); String u = sc.nextLine().trim();
+                if (!u.isEmpty()) System.out.println(u + ": " + st.borrows(u));
+            }
+        }
+
+        // ===== HTTP/JSON API =====
+        // JSON over the JDK's built-in server. Requests authenticate with HTTP Basic; parameters come from the
+        // query string and from a form-encoded or flat JSON body. Each exchange runs on its own virtual thread when
+        // the runtime has them (JDK 21+), otherwise on a cached pool.
+        static class HttpApi {
+            static final int PAGE_SIZE = 50;
+            private final UserService users;
+            private final BookService books;
+            private final LoanService loans;
+            private final CsvStore store;
+            private final ReplicationSource replication; // set on a primary that ships its log
+            private final Replica replica; // set on a read replica, which only answers reads
+            private HttpServer server;
+
+            HttpApi(UserService users, BookService books, LoanService loans, CsvStore store) { this(users, books, loans, store, null, null); }
+
+            HttpApi(UserService users, BookService books, LoanService loans, CsvStore store, ReplicationSource replication, Replica replica) {
+                this.users = users; this.books = books; this.loans = loans; this.store = store; this.replication = replication; this.replica = replica;
+            }
+
+            // Credentials travel in clear, so callers bind to loopback unless told otherwise, see bindAddress
+            void start(InetAddress bind, int port) throws IOException {
+                server = HttpServer.create(new InetSocketAddress(bind, port), 1024);
+                server.createContext("/", this::handle);
+                server.setExecutor(requestExecutor());
+                server.start();
+            }
+
+            void stop() { if (server != null) server.stop(0); }
+
+            static ExecutorService requestExecutor() {
+                try { return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null); }
+                catch (ReflectiveOperationException e) { return Executors.newCachedThreadPool(); }
+            }
+
+            static class HttpError extends RuntimeException {
+                private static final long serialVersionUID = 1L;
+                final int status;
+                HttpError(int status, String msg) { super(msg); this.status = status; }
+            }
+
+            private void handle(HttpExchange ex) throws IOException {
+                int status = 200; String body;
+                try {
+                    if (replica != null) checkReplica(ex);
+                    body = route(ex);
+                    // a change is only acknowledged once it is durable; in GROUP mode this waits for its batch
+                    if (!ex.getRequestMethod().equals("GET") && replica == null) Journal.await(store.whenDurable());
+                } catch (HttpError e) {
+                    status = e.status; body = error(e.getMessage());
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    status = 400; body = error(e.getMessage());
+                } catch (RuntimeException e) {
+                    status = 500; body = error(String.valueOf(e.getMessage()));
+                }
+                if (status == 401) ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"library\"");
+                byte[] out = body.getBytes(StandardCharsets.UTF_8);
+                ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                ex.sendResponseHeaders(status, out.length);
+                try (OutputStream os = ex.getResponseBody()) { os.write(out); }
+            }
+
+            // A replica serves reads (and its own sessions) only while it is within its lag bound
+            private void checkReplica(HttpExchange ex) {
+                String m = ex.getRequestMethod(), path = ex.getRequestURI().getPath().replaceAll("^/+|/+$", "");
+                long lag = replica.lagMillis();
+                if (lag != Long.MAX_VALUE) ex.getResponseHeaders().set("X-Replication-Lag-Ms", String.valueOf(lag));
+                if (path.equals("replication")) return;
+                if (!m.equals("GET") && !path.equals("sessions")) throw new HttpError(405, "Read-only replica, send changes to the primary");
+                if (!replica.fresh()) throw new HttpError(503, lag == Long.MAX_VALUE ? "Replica is still copying the primary's state" : "Replica is " + lag + " ms behind the primary");
+            }
+
+            private String route(HttpExchange ex) throws IOException {
+                String m = ex.getRequestMethod();
+                String[] seg = ex.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+                Map<String, String> q = params(ex);
+                String r = seg[0];
+                if (r.equals("replication") && m.equals("GET")) return replicationStatus();
+                if (r.equals("books") && seg.length == 1 && m.equals("GET"))
+                    return page(books.page(sort(q, BookService.Sort.class, BookService.Sort.ID), q.get("cursor"), intParam(q, "limit", PAGE_SIZE)), HttpApi::json);
+                if (r.equals("books") && seg.length == 2 && m.equals("GET")) return json(book(seg[1]));
+                if (r.equals("search") && m.equals("GET")) return array(books.search(req(q, "q"), Page.clamp(intParam(q, "limit", 20))), HttpApi::json);
+                if (r.equals("users") && seg.length == 1 && m.equals("POST")) {
+                    if (!users.addUser(req(q, "username"), req(q, "password"), q.get("fullName"))) throw new HttpError(409, "Username exists");
+                    return "{\"registered\":" + str(q.get("username")) + "}";
+                }
+
+                if (r.equals("sessions") && seg.length == 1 && m.equals("POST")) {
+                    SessionCache.Session s = users.login(req(q, "username"), req(q, "password"));
+                    if (s == null) throw new HttpError(401, "Invalid credentials");
+                    return "{\"token\":" + str(s.token) + ",\"expiresAt\":" + s.expiresAt + "}";
+                }
+
+                String user = authenticate(ex);
+                if (r.equals("sessions") && seg.length == 1 && m.equals("DELETE")) {
+                    String h = ex.getRequestHeaders().getFirst("Authorization");
+                    if (h != null && h.startsWith("Bearer ")) users.logout(h.substring(7).trim());
+                    return "{\"loggedOut\":" + str(user) + "}";
+                }
+                if (r.equals("loans") && seg.length == 2 && seg[1].equals("me") && m.equals("GET")) return array(loans.activeForUser(user), HttpApi::json);
+                if (r.equals("loans") && seg.length == 3 && seg[1].equals("me") && seg[2].equals("history") && m.equals("GET")) return array(loans.history(user), HttpApi::json);
+                if (r.equals("fines") && seg.length == 2 && seg[1].equals("me") && m.equals("GET")) return "{\"username\":" + str(user) + ",\"fine\":" + loans.projectedFine(user, asOf(q)) + "}";
+                if (r.equals("loans") && seg.length == 1 && m.equals("POST")) return json(loans.issue(longParam(req(q, "bookId")), user));
+                if (r.equals("loans") && seg.length == 3 && seg[2].equals("return") && m.equals("POST")) {
+                    long id = longParam(seg[1]);
+                    Loan l = loans.find(id);
+                    if (l == null) throw new HttpError(404, "Loan not found");
+                    if (!l.username().equals(user)) requireAdmin(user);
+                    return "{\"loanId\":" + id + ",\"fine\":" + loans.returnBook(id) + "}";
+                }
+                if (r.equals("holds") && seg.length == 2 && seg[1].equals("me") && m.equals("GET")) return array(loans.holdsForUser(user), HttpApi::json);
+                if (r.equals("holds") && seg.length == 1 && m.equals("POST")) return json(loans.placeHold(longParam(req(q, "bookId")), user));
+                if (r.equals("holds") && seg.length == 2 && m.equals("DELETE")) {
+                    loans.cancelHold(longParam(seg[1]), user.equals("admin") ? null : user);
+                    return "{\"cancelled\":" + seg[1] + "}";
+                }
+                if (r.equals("users") && seg.length == 2 && m.equals("DELETE")) {
+                    if (!seg[1].equals(user)) requireAdmin(user);
+                    if (!users.deleteUser(seg[1], loans)) throw new HttpError(409, "Active loans exist or no such user");
+                    return "{\"deleted\":" + str(seg[1]) + "}";
+                }
+
+                requireAdmin(user);
+                if (r.equals("books") && seg.length == 1 && m.equals("POST")) return json(books.create(req(q, "title"), req(q, "author"), intParam(q, "copies", 1)));
+                if (r.equals("books") && seg.length == 2 && m.equals("PUT")) {
+                    long id = longParam(seg[1]);
+                    Integer copies = q.containsKey("copies") ? intParam(q, "copies", 0) : null;
+                    if (!books.update(id, q.get("title"), q.get("author"), copies)) throw new HttpError(404, "Book not found");
+                    return json(books.find(id));
+                }
+                if (r.equals("books") && seg.length == 2 && m.equals("DELETE")) {
+                    if (!books.delete(longParam(seg[1]))) throw new HttpError(409, "Cannot delete (may have active loans or holds, or not exist)");
+                    return "{\"deleted\":" + seg[1] + "}";
+                }
+                if (r.equals("users") && seg.length == 1 && m.equals("GET")) return page(users.page(q.get("cursor"), intParam(q, "limit", PAGE_SIZE)), HttpApi::json);
+                if (r.equals("loans") && seg.length == 1 && m.equals("GET"))
+                    return page(loans.page(sort(q, LoanService.Sort.class, LoanService.Sort.ID), q.get("cursor"), intParam(q, "limit", PAGE_SIZE)), HttpApi::json);
+                if (r.equals("loans") && seg.length == 2 && seg[1].equals("history") && m.equals("GET"))
+                    return array(loans.returnedBetween(YearMonth.parse(req(q, "from")), YearMonth.parse(req(q, "to"))), HttpApi::json);
+                if (r.equals("loans") && seg.length == 2 && seg[1].equals("overdue") && m.equals("GET")) return array(loans.overdue(asOf(q)), HttpApi::json);
+                if (r.equals("stats") && seg.length == 1 && m.equals("GET")) return stats(intParam(q, "days", 7), intParam(q, "limit", 10));
+                if (r.equals("stats") && seg.length == 3 && seg[1].equals("users") && m.equals("GET"))
+                    return "{\"username\":" + str(seg[2]) + ",\"borrows\":" + loans.stats().borrows(seg[2]) + "}";
+                if (r.equals("fines") && seg.length == 1 && m.equals("GET"))
+                    return array(loans.projectedFines(asOf(q)).entrySet(), e -> "{\"username\":" + str(e.getKey()) + ",\"fine\":" + e.getValue() + "}");
+                throw new HttpError(404, "No route for " + m + " " + ex.getRequestURI().getPath());
+            }
+
+            // days=0 ranks books over all time
+            private String stats(int days, int limit) {
+                CirculationStats st = loans.stats();
+                limit = Page.clamp(limit);
+                return "{\"ready\":" + st.ready() + ",\"days\":" + days
+                        + ",\"topBooks\":" + array(st.topBooks(days, limit), e -> { Book b = books.find(e.getKey()); return "{\"bookId\":" + e.getKey() + ",\"title\":" + (b == null ? "null" : str(b.title)) + ",\"borrows\":" + e.getValue() + "}"; })
+                        + ",\"topAuthors\":" + array(st.topAuthors(limit), e -> "{\"author\":" + str(e.getKey()) + ",\"borrows\":" + e.getValue() + "}")
+                        + ",\"loansIssued\":" + st.loansIssued() + ",\"averageLoanDays\":" + st.averageLoanDays() + "}";
+            }
+
+            private String replicationStatus() {
+                if (replica != null) {
+                    long lag = replica.lagMillis();
+                    return "{\"role\":\"replica\",\"connected\":" + replica.connected() + ",\"appliedLsn\":" + replica.appliedLsn()
+                            + ",\"lagMillis\":" + (lag == Long.MAX_VALUE ? "null" : String.valueOf(lag)) + ",\"maxLagMillis\":" + replica.maxLagMillis + "}";
+                }
+                if (replication == null) return "{\"role\":\"standalone\"}";
+                long lsn = replication.lsn(), now = System.currentTimeMillis();
+                return "{\"role\":\"primary\",\"lsn\":" + lsn + ",\"replicas\":" + array(replication.followers(), f -> "{\"address\":" + str(f.address())
+                        + ",\"ackedLsn\":" + f.ackedLsn + ",\"behind\":" + Math.max(0, lsn - f.ackedLsn) + ",\"lagMillis\":" + (f.ackedMillis == 0 ? "null" : String.valueOf(now - f.ackedMillis)) + "}") + "}";
+            }
+
+            // A session token (Authorization: Bearer <token>, from POST /sessions) or HTTP Basic credentials
+            private String authenticate(HttpExchange ex) {
+                String h = ex.getRequestHeaders().getFirst("Authorization");
+                if (h != null && h.startsWith("Bearer ")) {
+                    String user = users.sessionUser(h.substring(7).trim());
+                    if (user != null) return user;
+                    throw new HttpError(401, "Session expired or unknown");
+                }
+                if (h != null && h.startsWith("Basic ")) {
+                    String cred = new String(Base64.getDecoder().decode(h.substring(6).trim()), StandardCharsets.UTF_8);
+                    int i = cred.indexOf(':');
+                    if (i > 0 && users.authenticate(cred.substring(0, i), cred.substring(i + 1))) return cred.substring(0, i);
+                }
+                throw new HttpError(401, "Authentication required");
+            }
+
+            private static void requireAdmin(String user) { if (!user.equals("admin")) throw new HttpError(403, "Admin access only"); }
+
+            private Book book(String id) {
+                Book b = books.find(longParam(id));
+                if (b == null) throw new HttpError(404, "Book not found");
+                return b;
+            }
+
+            // Request parameters
+            private static Map<String, String> params(HttpExchange ex) throws IOException {
+                Map<String, String> out = new HashMap<>();
+                form(ex.getRequestURI().getRawQuery(), out);
+                String body;
+                try (InputStream in = ex.getRequestBody()) { body = new String(in.readAllBytes(), StandardCharsets.UTF_8); }
+                String type = ex.getRequestHeaders().getFirst("Content-Type");
+                if (type != null && type.contains("json")) flatJson(body, out);
+                else form(body, out);
+                return out;
+            }
+
+            private static void form(String s, Map<String, String> out) {
+                if (s == null || s.isEmpty()) return;
+                for (String kv : s.split("&")) {
+                    int i = kv.indexOf('=');
+                    if (i <= 0) continue;
+                    out.put(URLDecoder.decode(kv.substring(0, i), StandardCharsets.UTF_8), URLDecoder.decode(kv.substring(i + 1), StandardCharsets.UTF_8));
+                }
+            }
+
+            // Accepts a single JSON object of string/number/boolean members, which is all the endpoints take
+            static void flatJson(String s, Map<String, String> out) {
+                int i = s.indexOf('{');
+                if (i < 0) return;
+                i++;
+                while (true) {
+                    i = skipWs(s, i);
+                    if (i >= s.length() || s.charAt(i) == '}') return;
+                    if (s.charAt(i) == ',') { i++; continue; }
+                    StringBuilder key = new StringBuilder();
+                    i = readString(s, i, key);
+                    i = skipWs(s, i);
+                    if (i >= s.length() || s.charAt(i) != ':') throw new IllegalArgumentException("Malformed JSON body");
+                    i = skipWs(s, i + 1);
+                    StringBuilder val = new StringBuilder();
+                    if (i < s.length() && s.charAt(i) == '"') i = readString(s, i, val);
+                    else { while (i < s.length() && ",} \t\r\n".indexOf(s.charAt(i)) < 0) val.append(s.charAt(i++)); }
+                    if (!val.toString().equals("null")) out.put(key.toString(), val.toString());
+                }
+            }
+
+            private static int skipWs(String s, int i) { while (i < s.length() && Character.isWhitespace(s.charAt(i))) i++; return i; }
+
+            private static int readString(String s, int i, StringBuilder sb) {
+                if (i >= s.length() || s.charAt(i) != '"') throw new IllegalArgumentException("Malformed JSON body");
+                for (i++; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    if (c == '"') return i + 1;
+                    if (c != '\\') { sb.append(c); continue; }
+                    char e = s.charAt(++i);
+                    switch (e) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u': sb.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16)); i += 4; break;
+                        default: sb.append(e);
+                    }
+                }
+                throw new IllegalArgumentException("Malformed JSON body");
+            }
+
+            private static String req(Map<String, String> q, String name) {
+                String v = q.get(name);
+                if (v == null || v.isBlank()) throw new IllegalArgumentException("Missing parameter: " + name);
+                return v;
+            }
+
+            private static <E extends Enum<E>> E sort(Map<String, String> q, Class<E> type, E def) {
+                String v = q.get("sort");
+                return v == null ? def : Enum.valueOf(type, v.toUpperCase(Locale.ROOT));
+            }
+
+            private static LocalDate asOf(Map<String, String> q) { return q.containsKey("asOf") ? LocalDate.parse(q.get("asOf")) : LocalDate.now(); }
+
+            private static int intParam(Map<String, String> q, String name, int def) {
+                String v = q.get(name);
+                try { return v == null ? def : Integer.parseInt(v.trim()); }
+                catch (NumberFormatException e) { throw new IllegalArgumentException("Invalid number: " + name); }
+            }
+
+            private static long longParam(String v) {
+                try { return Long.parseLong(v.trim()); }
+                catch (NumberFormatException e) { throw new IllegalArgumentException("Invalid id: " + v); }
+            }
+
+            // JSON rendering
+            static String json(Book b) {
+                return "{\"id\":" + b.id + ",\"title\":" + str(b.title) + ",\"author\":" + str(b.author) + ",\"totalCopies\":" + b.totalCopies + ",\"availableCopies\":" + b.availableCopies + "}";
+            }
+
+            static String json(User u) { return "{\"username\":" + str(u.username) + ",\"fullName\":" + str(u.fullName) + "}"; }
+
+            static String json(Loan l) {
+                LocalDate ret = l.returnDate();
+                return "{\"id\":" + l.id() + ",\"bookId\":" + l.bookId() + ",\"username\":" + str(l.username()) + ",\"issueDate\":" + str(l.issueDate().toString())
+                        + ",\"dueDate\":" + str(l.dueDate().toString()) + ",\"returnDate\":" + (ret == null ? "null" : str(ret.toString())) + "}";
+            }
+
+            static String json(Hold h) {
+                return "{\"id\":" + h.id + ",\"bookId\":" + h.bookId + ",\"username\":" + str(h.username) + ",\"placed\":" + str(h.placed.toString())
+                        + ",\"pickupBy\":" + (h.pickupBy == null ? "null" : str(h.pickupBy.toString())) + "}";
+            }
+
+            // {"items":[...],"next":cursor or null}
+            static <T> String page(Page<T> p, Function<T, String> f) {
+                return "{\"items\":" + array(p.items, f) + ",\"next\":" + (p.next == null ? "null" : str(p.next)) + "}";
+            }
+
+            static <T> String array(Collection<T> items, Function<T, String> f) {
+                StringBuilder sb = new StringBuilder("[");
+                for (T t : items) { if (sb.length() > 1) sb.append(','); sb.append(f.apply(t)); }
+                return sb.append(']').toString();
+            }
+
+            private static String error(String msg) { return "{\"error\":" + str(msg) + "}"; }
+
+            static String str(String s) {
+                if (s == null) return "null";
+                StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+                for (int i = 0; i < s.length(); i++) {
+                    char c = s.charAt(i);
+                    switch (c) {
+                        case '"': sb.append("\\\""); break;
+                        case '\\': sb.append("\\\\"); break;
+                        case '\n': sb.append("\\n"); break;
+                        case '\r': sb.append("\\r"); break;
+                        case '\t': sb.append("\\t"); break;
+                        default:
+                            if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                            else sb.append(c);
+                    }
+                }
+                return sb.append('"').toString();
+            }
+        }
+
+        // ===== Load test =====
+        // Headless workload for capacity planning. Unless the directory already holds a library, it generates one:
+        // a catalog with a few copies per title, patrons, a year of returned loans and some active ones. Then
+        // --patrons simulated patrons pick operations from a weighted mix against the services for --duration
+        // seconds, popular titles far more often than the rest. Every --report-every seconds it prints throughput,
+        // latency percentiles, data-file size and heap; at the end it prints per-operation numbers and checks that
+        // no copy was ever over-issued.
+        static final class LoadTest {
+            enum Op { BROWSE, SEARCH, BORROW, RETURN, REGISTER, ADMIN }
+            static final String DEFAULT_MIX = "browse=50,search=15,borrow=13,return=12,register=3,admin=7";
+            static final String PASSWORD = "password";
+            private static final String[] WORDS = {"silent", "river", "garden", "empire", "shadow", "winter", "stone", "glass",
+                    "journey", "ocean", "forest", "crown", "letters", "night", "mirror", "harbor", "orchard", "storm", "signal", "lantern"};
+            private static final String[] FIRST = {"Anita", "Rahul", "Meera", "Vikram", "Priya", "Arjun", "Kavya", "Rohan", "Isha", "Dev"};
+            private static final String[] LAST = {"Sharma", "Iyer", "Patel", "Reddy", "Das", "Nair", "Gupta", "Rao", "Singh", "Bose"};
+            private static final String[] SYLLABLES = {"ka", "ri", "mo", "ten", "sha", "lo", "vin", "dra", "pe", "nor", "la", "mir",
+                    "so", "gan", "thi", "ba", "rel", "en", "da", "qui", "os", "ve", "lan", "tu"};
+            // The real words first, then made-up ones; titles and queries draw from the front far more often, so
+            // postings lists range from long to a handful of books, as in a real catalog
+            private static final String[] VOCABULARY = vocabulary(5000);
+
+            private static final class Tally {
+                final LatencyHistogram latency = new LatencyHistogram();
+                final LongAdder rejected = new LongAdder(); // refused by a business rule: no copies, nothing to return ...
+                final LongAdder errors = new LongAdder();
+            }
+
+            private final Path dir;
+            private final int books, users, history, active, patrons, seconds, reportSeconds, thinkMillis;
+            private final double skew; // book = first + n * u^skew, so the top 1% of titles draws 1%^(1/skew) of the traffic
+            private final long seed;
+            private final int[] weights = new int[Op.values().length];
+            private final int totalWeight;
+            private final String report; // timeline CSV, or null
+            private final Tally[] tallies = new Tally[Op.values().length];
+            // every operation of the current interval; the reporter reads and resets it, losing the odd sample in between
+            private final LatencyHistogram window = new LatencyHistogram();
+            private final AtomicReference<RuntimeException> firstError = new AtomicReference<>();
+            private final AtomicLong registered = new AtomicLong();
+            private final AtomicLong lastBook = new AtomicLong();
+            private final String runId = Long.toString(System.currentTimeMillis(), 36);
+            private BookService bookService;
+            private UserService userService;
+            private LoanService loanService;
+            private String[] pool; // patrons' usernames
+
+            LoadTest(Path dir, String[] args) {
+                this.dir = dir;
+                books = intOption(args, "--books", 100_000);
+                users = intOption(args, "--users", 10_000);
+                history = intOption(args, "--history", 500_000);
+                active = intOption(args, "--active", 20_000);
+                patrons = intOption(args, "--patrons", 64);
+                seconds = intOption(args, "--duration", 60);
+                reportSeconds = Math.max(1, intOption(args, "--report-every", 5));
+                thinkMillis = intOption(args, "--think-ms", 0);
+                String s = option(args, "--skew");
+                skew = s == null ? 3 : Double.parseDouble(s);
+                s = option(args, "--seed");
+                seed = s == null ? 42 : Long.parseLong(s);
+                report = option(args, "--report");
+                s = option(args, "--mix");
+                for (String part : (s == null ? DEFAULT_MIX : s).split(",")) {
+                    String[] kv = part.split("=");
+                    if (kv.length != 2) throw new IllegalArgumentException("Mix entries look like borrow=10, not " + part);
+                    Op op;
+                    try { op = Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT)); }
+                    catch (IllegalArgumentException e) { throw new IllegalArgumentException("Unknown operation " + kv[0] + ", expected one of " + Arrays.toString(Op.values())); }
+                    weights[op.ordinal()] = Integer.parseInt(kv[1].trim());
+                }
+                totalWeight = Arrays.stream(weights).sum();
+                if (totalWeight <= 0) throw new IllegalArgumentException("The operation mix is empty");
+                if (books <= 0 || users <= 0 || patrons <= 0 || seconds <= 0) throw new IllegalArgumentException("--books, --users, --patrons and --duration must be positive");
+                for (int i = 0; i < tallies.length; i++) tallies[i] = new Tally();
+            }
+
+            static int intOption(String[] args, String name, int def) {
+                String v = option(args, name);
+                return v == null ? def : Integer.parseInt(v.replace("_", ""));
+            }
+
+            void run(CsvStore store) throws IOException {
+                if (Files.exists(dir.resolve("books.csv"))) System.out.println("Using the library already in " + dir);
+                else {
+                    long t0 = System.nanoTime();
+                    generate();
+                    System.out.printf(Locale.ROOT, "Generated %,d books, %,d users, %,d returned and up to %,d active loans in %.1fs%n", books, users, history, active, (System.nanoTime() - t0) / 1e9);
+                }
+                long t0 = System.nanoTime();
+                store.init();
+                Metrics.registerMBeans();
+                bookService = new BookService(store);
+                userService = new UserService(store);
+                loanService = new LoanService(store, bookService);
+                while (!loanService.stats().ready()) sleep(50); // the rebuild would compete with the patrons
+                pool = userService.all().stream().map(u -> u.username).filter(u -> !u.equals("admin")).toArray(String[]::new);
+                if (pool.length == 0) throw new IllegalStateException("No patrons in " + dir);
+                lastBook.set(bookService.all().stream().mapToLong(b -> b.id).max().orElse(1000L));
+                System.out.printf(Locale.ROOT, "Loaded in %.1fs: %,d books, %,d patrons, %,d active loans, heap %.0f MB%n",
+                        (System.nanoTime() - t0) / 1e9, lastBook.get() - 1000, pool.length, loanService.active().size(), heap() / 1e6);
+
+                long startBytes = sizeOf(dir);
+                List<String> timeline = new ArrayList<>();
+                timeline.add("seconds,ops,opsPerSecond,p50Micros,p99Micros,p999Micros,dataBytes,heapBytes");
+                System.out.printf(Locale.ROOT, "Running %d patrons for %ds, mix %s%n", patrons, seconds, mix());
+                System.out.printf(Locale.ROOT, "%8s %10s %9s %9s %9s %10s %9s %9s%n", "time", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "data MB", "MB/s", "heap MB");
+                for (Operation o : Metrics.all()) o.reset();
+                long begin = System.nanoTime(), end = begin + TimeUnit.SECONDS.toNanos(seconds);
+                ExecutorService threads = HttpApi.requestExecutor();
+                for (int i = 0; i < patrons; i++) {
+                    SplittableRandom r = new SplittableRandom(seed + i);
+                    threads.execute(() -> patron(r, end));
+                }
+                long lastBytes = startBytes, lastAt = begin;
+                while (lastAt < end) {
+                    long at = Math.min(lastAt + TimeUnit.SECONDS.toNanos(reportSeconds), end);
+                    for (long left; (left = at - System.nanoTime()) > 0; ) sleep((left + 999_999) / 1_000_000);
+                    long now = System.nanoTime(), ops = window.count(), bytes = sizeOf(dir), heap = heap();
+                    double secs = (now - lastAt) / 1e9, p50 = window.percentile(0.50) / 1e3, p99 = window.percentile(0.99) / 1e3, p999 = window.percentile(0.999) / 1e3;
+                    window.reset();
+                    System.out.printf(Locale.ROOT, "%7.0fs %,10.0f %9.3f %9.3f %9.3f %10.1f %9.2f %9.0f%n", (now - begin) / 1e9, ops / secs, p50 / 1e3, p99 / 1e3, p999 / 1e3,
+                            bytes / 1e6, (bytes - lastBytes) / 1e6 / secs, heap / 1e6);
+                    timeline.add(String.format(Locale.ROOT, "%.1f,%d,%.1f,%.1f,%.1f,%.1f,%d,%d", (now - begin) / 1e9, ops, ops / secs, p50, p99, p999, bytes, heap));
+                    lastBytes = bytes; lastAt = now;
+                }
+                threads.shutdown();
+                try { if (!threads.awaitTermination(1, TimeUnit.MINUTES)) System.err.println("Some patrons are still running"); }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+                double elapsed = (System.nanoTime() - begin) / 1e9;
+                Journal.await(store.whenDurable());
+                long endBytes = sizeOf(dir);
+                if (report != null) {
+                    Files.write(Paths.get(report), timeline, StandardCharsets.UTF_8);
+                    System.out.println("Timeline written to " + report);
+                }
+                summary(elapsed, startBytes, endBytes);
+                store.checkpoint();
+                System.out.printf(Locale.ROOT, "Data files after checkpoint: %.1f MB%n", sizeOf(dir) / 1e6);
+                System.out.print("Service and store metrics for the run:\n" + Metrics.dump());
+                int bad = audit();
+                if (firstError.get() != null) { System.err.println("First error:"); firstError.get().printStackTrace(); }
+                if (bad > 0) throw new IllegalStateException("Copies over-issued or lost on " + bad + " books");
+                System.out.println("Copy audit passed: available + on loan + set aside equals the copies owned for every book");
+            }
+
+            private void patron(SplittableRandom r, long end) {
+                while (System.nanoTime() < end) {
+                    int pick = r.nextInt(totalWeight), o = 0;
+                    while ((pick -= weights[o]) >= 0) o++;
+                    Tally t = tallies[o];
+                    String user = pool[r.nextInt(pool.length)];
+                    long t0 = System.nanoTime();
+                    boolean done;
+                    try { done = perform(Op.values()[o], r, user); }
+                    catch (IllegalArgumentException e) { done = false; }
+                    catch (RuntimeException e) { done = true; t.errors.increment(); firstError.compareAndSet(null, e); }
+                    long took = System.nanoTime() - t0;
+                    t.latency.record(took);
+                    window.record(took);
+                    if (!done) t.rejected.increment();
+                    if (thinkMillis > 0) sleep((long) (-thinkMillis * Math.log(1 - r.nextDouble()))); // exponential, mean thinkMillis
+                }
+            }
+
+            // false when the library refused, e.g. a patron with nothing to return
+            private boolean perform(Op op, SplittableRandom r, String user) {
+                switch (op) {
+                    case BROWSE: {
+                        int k = r.nextInt(20);
+                        if (k < 12) return bookService.find(popularBook(r)) != null;
+                        if (k < 17) {
+                            BookService.Sort sort = BookService.Sort.values()[r.nextInt(BookService.Sort.values().length)];
+                            Page<Book> p = bookService.page(sort, null, 20);
+                            if (p.next != null && r.nextBoolean()) bookService.page(sort, p.next, 20);
+                            return true;
+                        }
+                        loanService.activeForUser(user); // "my loans"
+                        loanService.holdsForUser(user);
+                        return true;
+                    }
+                    case SEARCH: {
+                        String q = word(r);
+                        int k = r.nextInt(10);
+                        if (k < 3) q = q.substring(0, 3 + r.nextInt(q.length() - 3)); // typing a prefix
+                        else if (k < 5) { int i = r.nextInt(q.length() - 1); q = q.substring(0, i) + q.charAt(i + 1) + q.charAt(i) + q.substring(i + 2); } // typo
+                        else if (k < 7) q = q + " " + word(r);
+                        bookService.search(q, 10);
+                        return true;
+                    }
+                    case BORROW: {
+                        for (Hold h : loanService.holdsForUser(user)) if (h.isReady()) { loanService.issue(h.bookId, user); return true; } // pick up
+                        long id = popularBook(r);
+                        try { loanService.issue(id, user); }
+                        catch (IllegalArgumentException e) {
+                            if (!e.getMessage().startsWith("No copies")) throw e;
+                            loanService.placeHold(id, user);
+                        }
+                        return true;
+                    }
+                    case RETURN: {
+                        List<Loan> mine = loanService.activeForUser(user);
+                        if (mine.isEmpty()) return false;
+                        loanService.returnBook(mine.get(r.nextInt(mine.size())).id());
+                        return true;
+                    }
+                    case REGISTER: {
+                        String name = "new-" + runId + "-" + registered.incrementAndGet();
+                        return userService.addUser(name, PASSWORD, FIRST[r.nextInt(FIRST.length)] + " " + LAST[r.nextInt(LAST.length)]);
+                    }
+                    case ADMIN: {
+                        int k = r.nextInt(10);
+                        if (k < 2) {
+                            Book b = bookService.create(title(r), author(r), 1 + r.nextInt(3));
+                            lastBook.accumulateAndGet(b.id, Math::max);
+                            return true;
+                        }
+                        long id = popularBook(r);
+                        if (k < 7) return bookService.update(id, title(r), null, null);
+                        Book b = bookService.find(id);
+                        return b != null && bookService.update(id, null, null, b.totalCopies + 1); // a copy bought, through a read-then-write form that may be stale
+                    }
+                    default: throw new IllegalStateException(op.toString());
+                }
+            }
+
+            private long popularBook(SplittableRandom r) {
+                long first = 1001, n = lastBook.get() - first + 1;
+                return first + (long) (n * Math.pow(r.nextDouble(), skew));
+            }
+
+            // Every book's available copies, active loans and copies set aside for a ready hold must add up to the
+            // copies it owns
+            private int audit() {
+                Map<Long, Integer> setAside = new HashMap<>();
+                for (Hold h : loanService.holds()) if (h.isReady()) setAside.merge(h.bookId, 1, Integer::sum);
+                int bad = 0;
+                for (Book b : bookService.all()) {
+                    int onLoan = loanService.activeForBook(b.id).size(), aside = setAside.getOrDefault(b.id, 0);
+                    if (b.availableCopies >= 0 && b.availableCopies + onLoan + aside == b.totalCopies) continue;
+                    if (bad++ < 10) System.err.printf("Book %d: %d available + %d on loan + %d set aside, but %d copies%n", b.id, b.availableCopies, onLoan, aside, b.totalCopies);
+                }
+                return bad;
+            }
+
+            private void summary(double elapsed, long startBytes, long endBytes) {
+                System.out.printf(Locale.ROOT, "%n%-9s %10s %10s %9s %7s %9s %9s %9s %9s%n", "operation", "count", "ops/s", "rejected", "errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+                long total = 0, writes = 0;
+                for (Op op : Op.values()) {
+                    Tally t = tallies[op.ordinal()];
+                    long n = t.latency.count();
+                    if (n == 0) continue;
+                    total += n;
+                    if (op != Op.BROWSE && op != Op.SEARCH) writes += n - t.rejected.sum();
+                    System.out.printf(Locale.ROOT, "%-9s %,10d %,10.0f %,9d %,7d %9.3f %9.3f %9.3f %9.3f%n", op.name().toLowerCase(Locale.ROOT), n, n / elapsed, t.rejected.sum(), t.errors.sum(),
+                            t.latency.percentile(0.50) / 1e6, t.latency.percentile(0.99) / 1e6, t.latency.percentile(0.999) / 1e6, t.latency.max() / 1e6);
+                }
+                System.out.printf(Locale.ROOT, "%-9s %,10d %,10.0f%n", "total", total, total / elapsed);
+                System.out.printf(Locale.ROOT, "Data files: %.1f MB before, %.1f MB after (%+.1f MB, %.0f bytes per change)%n",
+                        startBytes / 1e6, endBytes / 1e6, (endBytes - startBytes) / 1e6, writes == 0 ? 0.0 : (double) (endBytes - startBytes) / writes);
+            }
+
+            private String mix() {
+                StringJoiner j = new StringJoiner(",");
+                for (Op op : Op.values()) if (weights[op.ordinal()] > 0) j.add(op.name().toLowerCase(Locale.ROOT) + "=" + weights[op.ordinal()]);
+                return j.toString();
+            }
+
+            // Writes the CSVs directly; the store picks them up on init, archiving the returned loans
+            private void generate() throws IOException {
+                Files.createDirectories(dir);
+                SplittableRandom r = new SplittableRandom(seed);
+                int[] total = new int[books], available = new int[books];
+                for (int i = 0; i < books; i++) total[i] = available[i] = 1 + r.nextInt(4);
+                LocalDate today = LocalDate.now();
+                try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("loans.csv"), StandardCharsets.UTF_8)) {
+                    w.write("id,bookId,username,issueDate,dueDate,returnDate\n");
+                    long id = 5001;
+                    for (int i = 0; i < history; i++, id++) {
+                        LocalDate issued = today.minusDays(30 + r.nextInt(335));
+                        w.write(id + "," + (1001 + (long) (books * Math.pow(r.nextDouble(), skew))) + ",patron" + r.nextInt(users) + "," + issued + "," + issued.plusDays(14) + "," + issued.plusDays(1 + r.nextInt(28)) + "\n");
+                    }
+                    for (int i = 0; i < active; i++) {
+                        int b = (int) (books * Math.pow(r.nextDouble(), skew));
+                        if (available[b] == 0) continue; // popular titles run dry, as they would
+                        available[b]--;
+                        LocalDate issued = today.minusDays(r.nextInt(28)); // some already overdue
+                        w.write(id++ + "," + (1001 + b) + ",patron" + r.nextInt(users) + "," + issued + "," + issued.plusDays(14) + ",\n");
+                    }
+                }
+                try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("books.csv"), StandardCharsets.UTF_8)) {
+                    w.write("id,title,author,total,available\n");
+                    for (int i = 0; i < books; i++) w.write((1001 + i) + "," + title(r) + "," + author(r) + "," + total[i] + "," + available[i] + "\n");
+                }
+                String hash = Security.sha256Hex(PASSWORD);
+                try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("users.csv"), StandardCharsets.UTF_8)) {
+                    w.write("username,passwordHash,fullName\n");
+                    w.write("admin," + Security.sha256Hex("admin123") + ",Administrator\n");
+                    for (int i = 0; i < users; i++) w.write("patron" + i + "," + hash + "," + FIRST[i % FIRST.length] + " " + LAST[(i / FIRST.length) % LAST.length] + "\n");
+                }
+            }
+
+            private static String[] vocabulary(int n) {
+                Set<String> out = new LinkedHashSet<>(Arrays.asList(WORDS));
+                SplittableRandom r = new SplittableRandom(n);
+                while (out.size() < n) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int i = 2 + r.nextInt(2); i > 0; i--) sb.append(SYLLABLES[r.nextInt(SYLLABLES.length)]);
+                    if (sb.length() >= 4) out.add(sb.toString());
+                }
+                return out.toArray(new String[0]);
+            }
+
+            private static String word(SplittableRandom r) { return VOCABULARY[(int) (VOCABULARY.length * Math.pow(r.nextDouble(), 2))]; }
+
+            private static String capitalized(String w) { return Character.toUpperCase(w.charAt(0)) + w.substring(1); }
+
+            private static String title(SplittableRandom r) { return capitalized(word(r)) + " " + word(r) + " " + word(r); }
+
+            private static String author(SplittableRandom r) { return FIRST[r.nextInt(FIRST.length)] + " " + capitalized(VOCABULARY[r.nextInt(VOCABULARY.length)]); }
+
+            static long heap() { Runtime rt = Runtime.getRuntime(); return rt.totalMemory() - rt.freeMemory(); }
+
+            // Files may come and go under a running compaction; whatever vanishes mid-walk is skipped
+            static long sizeOf(Path dir) {
+                long[] n = {0};
+                try {
+                    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                        @Override public FileVisitResult visitFile(Path f, BasicFileAttributes a) { n[0] += a.size(); return FileVisitResult.CONTINUE; }
+                        @Override public FileVisitResult visitFileFailed(Path f, IOException e) { return FileVisitResult.CONTINUE; }
+                    });
+                } catch (IOException e) { throw new RuntimeException(e); }
+                return n[0];
+            }
+
+            private static void sleep(long millis) {
+                try { Thread.sleep(millis); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            }
+        }
+
+        // ===== Main =====
+        public static void main(String[] args) throws IOException {
+            // --replica-of <port> follows the primary replicating on that local port and serves its data read-only
+            // over --http; --max-lag-ms bounds how stale an answer may be
+            String primary = option(args, "--replica-of");
+            if (primary != null) {
+                String lag = option(args, "--max-lag-ms");
+                runReplica(Integer.parseInt(primary), bindAddress(args), option(args, "--http"), lag == null ? Replica.DEFAULT_MAX_LAG_MILLIS : Long.parseLong(lag));
+                return;
+            }
+            // --load-test <dir> runs a synthetic workload against the library in dir, generated on first use, and exits
+            String loadTest = option(args, "--load-test");
+            if (loadTest != null) {
+                new LoadTest(Paths.get(loadTest), args).run(openStore(loadTest, args));
+                return;
+            }
+            CsvStore store = openStore("data", args);
+            store.init();
+            Runtime.getRuntime().addShutdownHook(new Thread(store::checkpoint, "checkpoint"));
+            Metrics.registerMBeans();
+            // --metrics-dump <seconds> rewrites data/metrics.txt with the current numbers at that interval
+            String dump = option(args, "--metrics-dump");
+            if (dump != null) Metrics.startDump(Paths.get("data", "metrics.txt"), Long.parseLong(dump));
+
+            BookService bookService = new BookService(store);
+            UserService userService = new UserService(store);
+            LoanService loanService = new LoanService(store, bookService);
+            loanService.scheduleNightly();
+
+            // --replicate <port> streams the journal to read replicas connecting on that loopback port
+            String replicate = option(args, "--replicate");
+            ReplicationSource replication = null;
+            if (replicate != null) {
+                replication = new ReplicationSource(store, Integer.parseInt(replicate));
+                replication.start();
+                System.out.println("Replicating on localhost:" + replicate);
+            }
+
+            // --import <csv> bulk-loads books and exits
+            String importFile = option(args, "--import");
+            if (importFile != null) {
+                long t0 = System.nanoTime();
+                ImportReport r = bookService.importCsv(Paths.get(importFile), Paths.get("data", "import-rejects.csv"), ConsoleApp.IMPORT_BATCH, p -> System.out.println("  ... " + p));
+                System.out.printf("Done in %.1fs: %s. Rejected rows: %s%n", (System.nanoTime() - t0) / 1e9, r, r.rejects);
+                return;
+            }
+
+            // --http <port> serves the JSON API instead of the console
+            String port = option(args, "--http");
+            if (port != null) {
+                InetAddress bind = bindAddress(args);
+                new HttpApi(userService, bookService, loanService, store, replication, null).start(bind, Integer.parseInt(port));
+                System.out.println("Library API listening on http://" + bind.getHostAddress() + ":" + port + "/");
+                return;
+            }
+
+            ConsoleApp app = new ConsoleApp(userService, bookService, loanService);
+            app.run();
+        }
+
+        // A replica keeps its services in memory only; the store under a throwaway directory is never written
+        static void runReplica(int primaryPort, InetAddress bind, String httpPort, long maxLagMillis) throws IOException {
+            if (httpPort == null) throw new IllegalArgumentException("A replica needs --http <port>");
+            Path dir = Files.createTempDirectory("library-replica");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try (Stream<Path> files = Files.walk(dir)) { files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete()); }
+                catch (IOException e) { /* left for the OS to clean up */ }
+            }, "replica-cleanup"));
+            CsvStore store = new CsvStore(dir.toString(), false);
+            store.init();
+            Metrics.registerMBeans();
+            BookService bookService = new BookService(store);
+            UserService userService = new UserService(store);
+            LoanService loanService = new LoanService(store, bookService);
+            Replica replica = new Replica(primaryPort, store, bookService, userService, loanService, maxLagMillis);
+            replica.start();
+            new HttpApi(userService, bookService, loanService, store, null, replica).start(bind, Integer.parseInt(httpPort));
+            System.out.println("Read replica of localhost:" + primaryPort + " listening on http://" + bind.getHostAddress() + ":" + httpPort + "/");
+        }
+
+        // --bind <address> is the interface --http listens on; loopback unless given, as the API speaks plain HTTP
+        // with Basic credentials. Put a TLS proxy in front before binding anything else.
+        static InetAddress bindAddress(String[] args) throws UnknownHostException {
+            String bind = option(args, "--bind");
+            return bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+        }
+
+        // Not yet initialised
+        static CsvStore openStore(String dir, String[] args) {
+            // --no-journal falls back to rewriting the full CSVs on every change
+            boolean journaled = !Arrays.asList(args).contains("--no-journal");
+            // --durability sync|group|async and --group-commit-ms <n> choose when a journaled change counts as durable
+            String durability = option(args, "--durability");
+            String groupMillis = option(args, "--group-commit-ms");
+            // --shards <n> partitions books, loans and holds by book id over <dir>/shard-0 ... <dir>/shard-<n-1>
+            String shards = option(args, "--shards");
+            return new CsvStore(dir, journaled, durability == null ? Journal.Durability.GROUP : Journal.Durability.valueOf(durability.toUpperCase(Locale.ROOT)),
+                    groupMillis == null ? Journal.DEFAULT_GROUP_MILLIS : Long.parseLong(groupMillis), shards == null ? 0 : Integer.parseInt(shards));
+        }
+
+        static String option(String[] args, String name) {
+            for (int i = 0; i + 1 < args.length; i++) if (args[i].equals(name)) return args[i + 1];
+            return null;
+        }
+    }
+
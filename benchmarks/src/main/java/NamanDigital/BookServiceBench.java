@@ -0,0 +1,51 @@
+package NamanDigital;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BookServiceBench {
+    @Param({"10000", "1000000", "10000000"})
+    int rows;
+
+    private Path dir;
+    private LibraryManagement.BookService books;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.prepare(rows);
+        LibraryManagement.CsvStore store = new LibraryManagement.CsvStore(dir.toString());
+        store.init();
+        books = new LibraryManagement.BookService(store);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { Datasets.delete(dir); }
+
+    @Benchmark
+    public LibraryManagement.Book find() {
+        return books.find(Datasets.FIRST_BOOK + ThreadLocalRandom.current().nextInt(rows));
+    }
+
+    // A 50-book page by title starting at a random position; should not grow with the catalog
+    @Benchmark
+    public LibraryManagement.Page<LibraryManagement.Book> pageByTitle() {
+        LibraryManagement.Book from = books.find(Datasets.FIRST_BOOK + ThreadLocalRandom.current().nextInt(rows));
+        String cursor = LibraryManagement.Page.cursor(LibraryManagement.BookService.sortKey(from.title, from.id));
+        return books.page(LibraryManagement.BookService.Sort.TITLE, cursor, 50);
+    }
+
+    @Benchmark
+    public LibraryManagement.Book create() {
+        return books.create("Benchmark edition", "Bench Author", 3);
+    }
+}
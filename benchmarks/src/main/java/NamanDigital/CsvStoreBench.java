@@ -0,0 +1,62 @@
+package NamanDigital;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Full-file loads and rewrites; every call goes to disk, so the numbers include the page cache behaviour. With
+// shards > 0 the dataset is split over that many shard directories on setup, and each call loads or saves all of
+// them in parallel.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CsvStoreBench {
+    @Param({"10000", "1000000", "10000000"})
+    int rows;
+
+    @Param({"0", "4"})
+    int shards;
+
+    private Path dir;
+    private LibraryManagement.CsvStore store;
+    private List<LibraryManagement.Book> books;
+    private List<LibraryManagement.User> users;
+    private LibraryManagement.LoanTable loans;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.prepare(rows);
+        store = new LibraryManagement.CsvStore(dir.toString(), true, LibraryManagement.Journal.Durability.GROUP, LibraryManagement.Journal.DEFAULT_GROUP_MILLIS, shards);
+        store.init();
+        books = store.loadBooks();
+        users = store.loadUsers();
+        loans = store.loadLoans();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { Datasets.delete(dir); }
+
+    @Benchmark
+    public List<LibraryManagement.Book> loadBooks() { return store.loadBooks(); }
+
+    @Benchmark
+    public List<LibraryManagement.User> loadUsers() { return store.loadUsers(); }
+
+    @Benchmark
+    public LibraryManagement.LoanTable loadLoans() { return store.loadLoans(); }
+
+    @Benchmark
+    public void saveBooks() { store.saveBooks(books); }
+
+    @Benchmark
+    public void saveUsers() { store.saveUsers(users); }
+
+    @Benchmark
+    public void saveLoans() { store.saveLoans(loans); }
+}
@@ -0,0 +1,74 @@
+package NamanDigital;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Generated data directories for the benchmarks. A dataset of N rows has N books, N users (plus admin) and
+// N active loans. Each size is generated once under ${bench.data} (default: <tmp>/library-bench) and every
+// trial works on a fresh copy, so journal and snapshot files never leak from one run into the next.
+final class Datasets {
+    static final String PASSWORD = "password";
+    static final long FIRST_BOOK = 1001L;
+    private static final String[] WORDS = {"silent", "river", "garden", "empire", "shadow", "winter", "stone", "glass",
+            "journey", "ocean", "forest", "crown", "letters", "night", "mirror", "harbor", "orchard", "storm", "signal", "lantern"};
+    private static final String[] FIRST = {"Anita", "Rahul", "Meera", "Vikram", "Priya", "Arjun", "Kavya", "Rohan", "Isha", "Dev"};
+    private static final String[] LAST = {"Sharma", "Iyer", "Patel", "Reddy", "Das", "Nair", "Gupta", "Rao", "Singh", "Bose"};
+
+    private Datasets() {}
+
+    static Path prepare(int rows) throws IOException {
+        Path pristine = Paths.get(System.getProperty("bench.data", Paths.get(System.getProperty("java.io.tmpdir"), "library-bench").toString()), "rows-" + rows);
+        synchronized (Datasets.class) {
+            if (!Files.exists(pristine.resolve(".complete"))) generate(pristine, rows);
+        }
+        Path work = Files.createTempDirectory("library-run-");
+        for (String f : new String[]{"books.csv", "users.csv", "loans.csv"}) Files.copy(pristine.resolve(f), work.resolve(f));
+        return work;
+    }
+
+    static void delete(Path dir) {
+        if (dir == null) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException ignored) { } // a background compaction may still be writing; leftovers live in tmp
+    }
+
+    static String user(int i) { return "user" + i; }
+
+    private static void generate(Path dir, int rows) throws IOException {
+        Files.createDirectories(dir);
+        Random rnd = new Random(rows);
+        String hash = LibraryManagement.Security.sha256Hex(PASSWORD);
+        try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("books.csv"), StandardCharsets.UTF_8)) {
+            w.write("id,title,author,total,available\n");
+            for (int i = 0; i < rows; i++) {
+                String title = cap(WORDS[rnd.nextInt(WORDS.length)]) + " " + WORDS[rnd.nextInt(WORDS.length)] + " " + WORDS[rnd.nextInt(WORDS.length)];
+                String author = FIRST[rnd.nextInt(FIRST.length)] + " " + LAST[rnd.nextInt(LAST.length)];
+                // plenty of copies, so issue() never runs a book dry however long a run lasts
+                w.write((FIRST_BOOK + i) + "," + title + "," + author + ",1000000,1000000\n");
+            }
+        }
+        try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("users.csv"), StandardCharsets.UTF_8)) {
+            w.write("username,passwordHash,fullName\n");
+            w.write("admin," + LibraryManagement.Security.sha256Hex("admin123") + ",Administrator\n");
+            for (int i = 0; i < rows; i++) w.write(user(i) + "," + hash + "," + FIRST[i % FIRST.length] + " " + LAST[(i / FIRST.length) % LAST.length] + "\n");
+        }
+        LocalDate today = LocalDate.now();
+        try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("loans.csv"), StandardCharsets.UTF_8)) {
+            w.write("id,bookId,username,issueDate,dueDate,returnDate\n");
+            for (int i = 0; i < rows; i++) {
+                LocalDate issued = today.minusDays(rnd.nextInt(30));
+                w.write((5001L + i) + "," + (FIRST_BOOK + rnd.nextInt(rows)) + "," + user(rnd.nextInt(rows)) + "," + issued + "," + issued.plusDays(14) + ",\n");
+            }
+        }
+        Files.createFile(dir.resolve(".complete"));
+    }
+
+    private static String cap(String s) { return Character.toUpperCase(s.charAt(0)) + s.substring(1); }
+}
@@ -0,0 +1,59 @@
+package NamanDigital;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoanServiceBench {
+    @Param({"10000", "1000000", "10000000"})
+    int rows;
+
+    // SYNC waits for the fsync of each change, GROUP and ASYNC hand it to the journal writer
+    @Param({"SYNC", "GROUP", "ASYNC"})
+    String durability;
+
+    private Path dir;
+    private LibraryManagement.LoanService loans;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.prepare(rows);
+        LibraryManagement.CsvStore store = new LibraryManagement.CsvStore(dir.toString(), true, LibraryManagement.Journal.Durability.valueOf(durability), LibraryManagement.Journal.DEFAULT_GROUP_MILLIS);
+        store.init();
+        LibraryManagement.BookService books = new LibraryManagement.BookService(store);
+        loans = new LibraryManagement.LoanService(store, books);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { Datasets.delete(dir); }
+
+    LibraryManagement.Loan issueRandom() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return loans.issue(Datasets.FIRST_BOOK + r.nextInt(rows), Datasets.user(r.nextInt(rows)));
+    }
+
+    @Benchmark
+    public LibraryManagement.Loan issue() { return issueRandom(); }
+
+    // A loan issued outside the measured region; returnBook is several microseconds of locking and journal
+    // I/O, well above the per-invocation timestamp overhead JMH warns about
+    @State(Scope.Thread)
+    public static class Issued {
+        long loanId;
+
+        @Setup(Level.Invocation)
+        public void issue(LoanServiceBench bench) { loanId = bench.issueRandom().id(); }
+    }
+
+    @Benchmark
+    public double returnBook(Issued issued) { return loans.returnBook(issued.loanId); }
+}
@@ -0,0 +1,23 @@
+package NamanDigital;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplitCsvBench {
+    // a plain book row and one whose title and author need quoting
+    String plain = "1042,Silent river garden,Meera Iyer,5,3";
+    String quoted = "1043,\"War, and \"\"Peace\"\"\",\"Tolstoy, Leo\",5,3";
+
+    @Benchmark
+    public String[] plain() { return LibraryManagement.CsvStore.splitCsv(plain); }
+
+    @Benchmark
+    public String[] quoted() { return LibraryManagement.CsvStore.splitCsv(quoted); }
+}
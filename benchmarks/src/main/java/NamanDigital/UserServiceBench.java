@@ -0,0 +1,55 @@
+package NamanDigital;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserServiceBench {
+    @Param({"10000", "1000000", "10000000"})
+    int rows;
+
+    private Path dir;
+    private LibraryManagement.UserService users;
+    private String[] tokens;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Datasets.prepare(rows);
+        LibraryManagement.CsvStore store = new LibraryManagement.CsvStore(dir.toString());
+        store.init();
+        users = new LibraryManagement.UserService(store);
+        tokens = new String[Math.min(rows, 10_000)];
+        for (int i = 0; i < tokens.length; i++) tokens[i] = users.login(Datasets.user(i), Datasets.PASSWORD).token;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { Datasets.delete(dir); }
+
+    @Benchmark
+    public boolean authenticate() {
+        return users.authenticate(Datasets.user(ThreadLocalRandom.current().nextInt(rows)), Datasets.PASSWORD);
+    }
+
+    // Logins per second: a password check plus a new session token
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @BenchmarkMode(Mode.Throughput)
+    public LibraryManagement.SessionCache.Session login() {
+        return users.login(Datasets.user(ThreadLocalRandom.current().nextInt(rows)), Datasets.PASSWORD);
+    }
+
+    // What every later request costs once it carries a token
+    @Benchmark
+    public String session() {
+        return users.sessionUser(tokens[ThreadLocalRandom.current().nextInt(tokens.length)]);
+    }
+}
@@ -0,0 +1,66 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.CatalogIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogIndexTest {
+    private CatalogIndex index;
+
+    @BeforeEach
+    void build() {
+        index = new CatalogIndex();
+        index.add(new Book(1, "Dune", "Frank Herbert", 1, 1));
+        index.add(new Book(2, "Dunes of Arrakis", "Someone Else", 1, 1));
+        index.add(new Book(3, "Dume", "Nobody", 1, 1));           // one edit from "dune"
+        index.add(new Book(4, "Sandworms", "Dune Fan", 1, 1));    // author match only
+        index.add(new Book(5, "Emma", "Jane Austen", 1, 1));
+    }
+
+    @Test
+    void exactBeatsPrefixBeatsFuzzyAndTitleBeatsAuthor() {
+        // exact title 6, prefix title 4, exact author 3, fuzzy title 2
+        assertEquals(Arrays.asList(1L, 2L, 4L, 3L), index.search("dune", 10));
+        assertEquals(Arrays.asList(1L, 2L, 4L, 3L), index.search("DUNE", 10), "case-insensitive");
+    }
+
+    @Test
+    void equalScoresGoToTheLowerId() {
+        index.add(new Book(9, "Dune", "Frank Herbert", 1, 1));
+        index.add(new Book(7, "Dune", "Frank Herbert", 1, 1));
+        assertEquals(Arrays.asList(1L, 7L, 9L), index.search("dune", 3));
+    }
+
+    @Test
+    void theResultIsBoundedByTheLimit() {
+        assertEquals(Arrays.asList(1L, 2L), index.search("dune", 2));
+        assertEquals(Collections.emptyList(), index.search("dune", 0));
+        // a limit far above the candidates must not size anything by it
+        assertEquals(4, index.search("dune", Integer.MAX_VALUE).size());
+        assertEquals(Collections.emptyList(), index.search("zzzz", Integer.MAX_VALUE));
+    }
+
+    @Test
+    void removedBooksNoLongerMatch() {
+        index.remove(new Book(1, "Dune", "Frank Herbert", 1, 1));
+        assertEquals(Arrays.asList(2L, 4L, 3L), index.search("dune", 10));
+        index.remove(new Book(3, "Dume", "Nobody", 1, 1));
+        assertEquals(Arrays.asList(2L, 4L), index.search("dune", 10));
+    }
+
+    @Test
+    void oneEditIsAnInsertionDeletionSubstitutionOrTransposition() {
+        assertTrue(CatalogIndex.withinOneEdit("dune", "dunes"));
+        assertTrue(CatalogIndex.withinOneEdit("dune", "dun"));
+        assertTrue(CatalogIndex.withinOneEdit("dune", "dume"));
+        assertTrue(CatalogIndex.withinOneEdit("dune", "duen"));
+        assertFalse(CatalogIndex.withinOneEdit("dune", "dnue s"));
+        assertFalse(CatalogIndex.withinOneEdit("dune", "dome"));
+    }
+}
@@ -0,0 +1,79 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.CsvLoader;
+import NamanDigital.LibraryManagement.CsvStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CsvLoaderTest {
+    private static final String[] FIELDS = { "plain", " padded ", "with,comma", "say \"hi\"", "two\nlines", "crlf\r\ninside", "", "Zoë Ünïcode", "\"\"" };
+
+    @TempDir Path dir;
+
+    private static String quote(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) return field;
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    private static List<List<String>> load(Path file) {
+        List<List<List<String>>> runs = CsvLoader.loadRuns(file, true, ArrayList::new, (out, f) -> {
+            List<String> record = new ArrayList<>();
+            while (f.hasField()) record.add(f.text());
+            out.add(record);
+        });
+        List<List<String>> all = new ArrayList<>();
+        for (List<List<String>> run : runs) all.addAll(run);
+        return all;
+    }
+
+    @Test
+    void matchesSplitCsvAcrossRunBoundaries() throws Exception {
+        Random rnd = new Random(42);
+        StringBuilder csv = new StringBuilder("id,a,b\n");
+        List<List<String>> expected = new ArrayList<>();
+        for (int id = 1; csv.length() < 3 * CsvLoader.RUN_BYTES; id++) {
+            StringBuilder record = new StringBuilder().append(id);
+            for (int i = 1 + rnd.nextInt(5); i > 0; i--) record.append(',').append(quote(FIELDS[rnd.nextInt(FIELDS.length)]));
+            expected.add(Arrays.asList(CsvStore.splitCsv(record.toString())));
+            csv.append(record).append(rnd.nextBoolean() ? "\n" : "\r\n");
+        }
+        Path file = dir.resolve("records.csv");
+        Files.write(file, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        try (FileChannel ch = FileChannel.open(file)) { assertTrue(CsvLoader.boundaries(ch, ch.size(), CsvLoader.RUN_BYTES).length > 3, "several runs"); }
+        List<List<String>> actual = load(file);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertEquals(expected.get(i), actual.get(i), "record " + (i + 1));
+    }
+
+    @Test
+    void blankLinesAndAMissingFinalNewlineAreFine() throws Exception {
+        Path file = dir.resolve("records.csv");
+        Files.write(file, "id,a\n1,x\n\n  \r\n2,\"y\nz\"\n3,".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(Arrays.asList("1", "x"), Arrays.asList("2", "y\nz"), Arrays.asList("3", "")), load(file));
+    }
+
+    @Test
+    void impossibleDatesAreRejectedWithTheirByteOffset() throws Exception {
+        Path file = dir.resolve("dates.csv");
+        for (String bad : new String[] { "2023-02-29", "2024-02-30", "2023-04-31", "2023-13-01", "2023-00-10", "2023-01-00" }) {
+            Files.write(file, ("id,day\n1,2024-02-29\n2," + bad + "\n").getBytes(StandardCharsets.UTF_8));
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> CsvLoader.load(file, true, f -> { f.number(); return f.epochDay(); }), bad);
+            assertEquals("Malformed CSV record at byte 20", e.getMessage(), bad);
+            assertEquals("Bad date", e.getCause().getMessage(), bad);
+        }
+        Files.write(file, "id,day\n1,2024-02-29\n2,2023-12-31\n3,1970-01-01\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(19782L, 19722L, 0L), CsvLoader.load(file, true, f -> { f.number(); return f.epochDay(); }));
+    }
+}
@@ -0,0 +1,98 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Journal;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FinesTest {
+    private static final LocalDate TODAY = LocalDate.now();
+
+    @TempDir Path dir;
+
+    private LoanService loans;
+
+    // SYNC, so a reopen sees every change made before it
+    private void open() {
+        CsvStore store = new CsvStore(dir.toString(), true, Journal.Durability.SYNC, 1, 0);
+        store.init();
+        loans = new LoanService(store, new BookService(store));
+    }
+
+    private static String loan(long id, long bookId, String user, int dueInDays, String returned) {
+        LocalDate due = TODAY.plusDays(dueInDays);
+        return id + "," + bookId + "," + user + "," + due.minusDays(14) + "," + due + "," + returned;
+    }
+
+    // Loans issued in the past, so some are already overdue today
+    @BeforeEach
+    void seed() throws Exception {
+        Files.write(dir.resolve("books.csv"), Arrays.asList("id,title,author,total,available",
+                "1,Dune,Frank Herbert,3,1", "2,Emma,Jane Austen,1,0", "3,Ulysses,James Joyce,1,0"), StandardCharsets.UTF_8);
+        Files.write(dir.resolve("loans.csv"), Arrays.asList("id,bookId,username,issueDate,dueDate,returnDate",
+                loan(1, 1, "alice", -10, ""),
+                loan(2, 2, "alice", -3, ""),
+                loan(3, 3, "bob", -1, ""),
+                loan(4, 1, "carol", 5, ""),
+                loan(5, 1, "bob", -20, TODAY.minusDays(15).toString())), StandardCharsets.UTF_8);
+        open();
+    }
+
+    private List<Long> overdueIds(LocalDate asOf) { return loans.overdue(asOf).stream().map(Loan::id).collect(Collectors.toList()); }
+
+    @Test
+    void overdueListsActiveLoansDueBeforeTheDayMostOverdueFirst() {
+        assertEquals(Arrays.asList(1L, 2L, 3L), overdueIds(TODAY));
+        assertEquals(Arrays.asList(1L, 2L), overdueIds(TODAY.minusDays(1)), "due that day is not overdue yet");
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), overdueIds(TODAY.plusDays(6)));
+        assertEquals(Arrays.asList(), overdueIds(TODAY.minusDays(10)));
+    }
+
+    @Test
+    void finesAreChargedPerDayLate() {
+        Loan first = loans.overdue(TODAY).get(0);
+        assertEquals(50.0, loans.fine(first, TODAY));
+        assertEquals(0.0, loans.fine(first, TODAY.minusDays(10)));
+        assertEquals(65.0, loans.projectedFine("alice", TODAY));
+        assertEquals(0.0, loans.projectedFine("carol", TODAY));
+
+        Map<String, Double> expected = new LinkedHashMap<>();
+        expected.put("alice", 65.0);
+        expected.put("bob", 5.0);
+        assertEquals(expected, loans.projectedFines(TODAY));
+    }
+
+    @Test
+    void accruedFinesAreWrittenPerDay() throws Exception {
+        loans.accrueFines(TODAY);
+        assertEquals(Arrays.asList("username,fine", "alice,65.00", "bob,5.00"),
+                Files.readAllLines(dir.resolve("fines").resolve("fines-" + TODAY + ".csv"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void aReturnSettlesTheFineAndLeavesTheOverdueList() {
+        assertEquals(50.0, loans.returnBook(1));
+        assertEquals(Arrays.asList(2L, 3L), overdueIds(TODAY));
+        assertEquals(15.0, loans.projectedFine("alice", TODAY));
+        assertEquals(0.0, loans.returnBook(4), "returned before it was due");
+
+        open(); // the due-day index is rebuilt on load
+        assertEquals(Arrays.asList(2L, 3L), overdueIds(TODAY));
+    }
+}
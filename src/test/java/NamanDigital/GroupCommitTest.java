@@ -0,0 +1,74 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Journal;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import NamanDigital.LibraryManagement.Metrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitTest {
+    @TempDir Path dir;
+
+    private CsvStore store;
+    private BookService books;
+    private LoanService loans;
+
+    private void open(Journal.Durability durability, long groupMillis) {
+        store = new CsvStore(dir.toString(), true, durability, groupMillis, 0);
+        store.init();
+        books = new BookService(store);
+        loans = new LoanService(store, books);
+    }
+
+    private List<String> log() throws Exception { return Files.readAllLines(dir.resolve("journal.log"), StandardCharsets.UTF_8); }
+
+    // Runs a change and checks it went out as one commit whose records were on disk when it returned
+    private <T> T oneCommit(int records, Supplier<T> change) throws Exception {
+        int lines = log().size();
+        long commits = Metrics.JOURNAL_COMMIT.getCount();
+        T result = change.get();
+        assertEquals(commits + 1, Metrics.JOURNAL_COMMIT.getCount(), "commits");
+        assertEquals(lines + records, log().size(), "records on disk");
+        return result;
+    }
+
+    @Test
+    void eachSyncChangeIsOneCommitDurableOnReturn() throws Exception {
+        open(Journal.Durability.SYNC, 1);
+        Book b = oneCommit(1, () -> books.create("Title", "Author", 1));
+        Loan l = oneCommit(2, () -> loans.issue(b.id, "alice"));  // the loan and the copy taken
+        oneCommit(1, () -> loans.placeHold(b.id, "bob"));
+        oneCommit(2, () -> loans.returnBook(l.id()));             // the return and the hold the copy is set aside for
+        oneCommit(1, () -> books.update(b.id, "New title", null, 2));
+        oneCommit(2, () -> loans.issue(b.id, "bob"));             // the loan and the fulfilled hold
+    }
+
+    @Test
+    void groupChangesShareACommitAndACheckpointFlushesThem() throws Exception {
+        long window = 2_000;
+        open(Journal.Durability.GROUP, window);
+        int lines = log().size();
+        long commits = Metrics.JOURNAL_COMMIT.getCount();
+        for (int i = 0; i < 50; i++) books.create("Title " + i, "Author", 1);
+        assertEquals(lines, log().size(), "still queued");
+
+        // nothing to compact into without a UserService, so the checkpoint only commits the queue
+        long t0 = System.nanoTime();
+        store.checkpoint();
+        assertTrue(System.nanoTime() - t0 < window * 1_000_000 / 2, "did not wait for the group window");
+        assertEquals(lines + 50, log().size());
+        assertEquals(commits + 1, Metrics.JOURNAL_COMMIT.getCount());
+    }
+}
@@ -0,0 +1,106 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Hold;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HoldTest {
+    @TempDir Path dir;
+
+    private CsvStore store;
+    private BookService books;
+    private LoanService loans;
+
+    @BeforeEach
+    void open() {
+        store = new CsvStore(dir.toString());
+        store.init();
+        books = new BookService(store);
+        loans = new LoanService(store, books);
+    }
+
+    private Hold holdOf(String username) { return loans.holdsForUser(username).get(0); }
+
+    @Test
+    void holdsOnlyWhileNoCopyIsOnTheShelf() {
+        Book b = books.create("Title", "Author", 1);
+        assertThrows(IllegalArgumentException.class, () -> loans.placeHold(b.id, "alice"));
+        loans.issue(b.id, "alice");
+        assertThrows(IllegalArgumentException.class, () -> loans.placeHold(b.id, "alice"), "already borrowed");
+        loans.placeHold(b.id, "bob");
+        assertThrows(IllegalArgumentException.class, () -> loans.placeHold(b.id, "bob"), "already on hold");
+    }
+
+    @Test
+    void aReturnedCopyGoesToTheLongestWaitingHolder() {
+        Book b = books.create("Title", "Author", 1);
+        Loan l = loans.issue(b.id, "alice");
+        loans.placeHold(b.id, "bob");
+        loans.placeHold(b.id, "carol");
+        loans.returnBook(l.id());
+        assertEquals(0, b.availableCopies);
+        assertTrue(holdOf("bob").isReady());
+        assertFalse(holdOf("carol").isReady());
+        assertThrows(IllegalArgumentException.class, () -> loans.issue(b.id, "carol"), "set aside for bob");
+        loans.issue(b.id, "bob");
+        assertTrue(loans.holdsForUser("bob").isEmpty());
+    }
+
+    @Test
+    void anUncollectedCopyPassesOnAfterItsPickupDay() {
+        Book b = books.create("Title", "Author", 1);
+        Loan l = loans.issue(b.id, "alice");
+        loans.placeHold(b.id, "bob");
+        loans.placeHold(b.id, "carol");
+        loans.returnBook(l.id());
+        LocalDate pickupBy = holdOf("bob").pickupBy;
+        assertEquals(0, loans.expireHolds(pickupBy));
+        assertEquals(1, loans.expireHolds(pickupBy.plusDays(1)));
+        assertTrue(loans.holdsForUser("bob").isEmpty());
+        assertTrue(holdOf("carol").isReady());
+        loans.cancelHold(holdOf("carol").id, "carol");
+        assertEquals(1, b.availableCopies, "nobody left waiting");
+    }
+
+    @Test
+    void addedCopiesGoToWaitingHoldersFirst() {
+        Book b = books.create("Title", "Author", 1);
+        loans.issue(b.id, "alice");
+        loans.placeHold(b.id, "bob");
+        loans.placeHold(b.id, "carol");
+        loans.placeHold(b.id, "dave");
+        assertTrue(books.update(b.id, null, null, 3));
+        assertEquals(0, b.availableCopies);
+        assertTrue(holdOf("bob").isReady());
+        assertTrue(holdOf("carol").isReady());
+        assertFalse(holdOf("dave").isReady());
+        assertTrue(books.update(b.id, null, null, 5));
+        assertEquals(1, b.availableCopies);
+        assertTrue(holdOf("dave").isReady());
+
+        store.checkpoint();
+        open();
+        assertEquals(1, books.find(b.id).availableCopies);
+        assertTrue(holdOf("dave").isReady());
+    }
+
+    @Test
+    void aBookWithWaitingHoldersCannotBeDeleted() {
+        Book b = books.create("Title", "Author", 0);
+        loans.placeHold(b.id, "alice");
+        assertFalse(books.delete(b.id));
+        loans.cancelHold(holdOf("alice").id, "alice");
+        assertTrue(books.delete(b.id));
+    }
+}
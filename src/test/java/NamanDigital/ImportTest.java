@@ -0,0 +1,110 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.ImportReport;
+import NamanDigital.LibraryManagement.Journal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImportTest {
+    @TempDir Path dir;
+
+    // SYNC, so a reopen sees every change made before it
+    private BookService open(boolean journaled) {
+        CsvStore store = new CsvStore(dir.resolve("data").toString(), journaled, Journal.Durability.SYNC, 1, 0);
+        store.init();
+        return new BookService(store);
+    }
+
+    private Path source(String... lines) throws Exception {
+        Path file = dir.resolve("import.csv");
+        Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    private static long maxId(BookService books) { return books.all().stream().mapToLong(b -> b.id).max().orElse(0); }
+
+    @Test
+    void rowsAreValidatedDedupedAndRejectedWithTheirLine() throws Exception {
+        BookService books = open(true);
+        books.create("The Hobbit", "J.R.R. Tolkien", 1);
+        Path source = source(
+                "title,author,copies",
+                "the  hobbit,J.R.R.  Tolkien,2", // already in the catalog
+                "Dune,Frank Herbert,3",
+                "DUNE , frank herbert",           // same as the row above once normalized
+                ",Nobody",
+                "Emma,",
+                "Emma,Jane Austen,0",
+                "Emma,Jane Austen,many",
+                "just one field",
+                "",
+                "Emma,Jane Austen",
+                "\"Quoted, Title\",Someone,1");
+        Path rejectsFile = dir.resolve("rejects.csv");
+        List<Long> progress = new ArrayList<>();
+        ImportReport report = books.importCsv(source, rejectsFile, 2, r -> progress.add(r.imported));
+
+        assertEquals(12, report.lines);
+        assertEquals(3, report.imported);
+        assertEquals(2, report.duplicates);
+        assertEquals(7, report.rejected);
+        assertEquals(2, report.batches);
+        assertEquals(Arrays.asList(2L, 3L), progress, "called after every batch");
+
+        List<String> rejects = Files.readAllLines(rejectsFile, StandardCharsets.UTF_8);
+        assertEquals("line,reason,row", rejects.get(0));
+        List<String> reasons = new ArrayList<>();
+        for (String r : rejects.subList(1, rejects.size())) {
+            String[] p = CsvStore.splitCsv(r);
+            reasons.add(p[0] + " " + p[1]);
+            assertEquals(Files.readAllLines(source, StandardCharsets.UTF_8).get(Integer.parseInt(p[0]) - 1), p[2], "the row as read");
+        }
+        assertEquals(Arrays.asList("2 duplicate", "4 duplicate", "5 missing title", "6 missing author", "7 copies out of range",
+                "8 copies not a number", "9 expected title,author[,copies]"), reasons);
+
+        List<String> titles = books.all().stream().map(b -> b.title + "/" + b.author + "/" + b.totalCopies).sorted().collect(Collectors.toList());
+        assertEquals(Arrays.asList("Dune/Frank Herbert/3", "Emma/Jane Austen/1", "Quoted, Title/Someone/1", "The Hobbit/J.R.R. Tolkien/1"), titles);
+    }
+
+    @Test
+    void importedIdsAreNeverReusedAfterARestart() throws Exception {
+        BookService books = open(true);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 25; i++) lines.add("Title " + i + ",Author " + i);
+        books.importCsv(source(lines.toArray(new String[0])), dir.resolve("rejects.csv"), 10, r -> { });
+        List<Long> ids = books.all().stream().map(b -> b.id).sorted().collect(Collectors.toList());
+        assertEquals(25, ids.size());
+        assertEquals(ids.get(0) + 24, (long) ids.get(24), "one reservation per batch, consecutive");
+        long highest = ids.get(24);
+        assertTrue(books.delete(highest));
+
+        books = open(true);
+        assertEquals(24, books.all().size());
+        Book next = books.create("After", "Restart", 1);
+        assertTrue(next.id > highest, "the deleted id " + highest + " came back as " + next.id);
+    }
+
+    @Test
+    void importedBooksSurviveARestartWithoutTheJournal() throws Exception {
+        BookService books = open(false);
+        books.importCsv(source("Dune,Frank Herbert,2", "Emma,Jane Austen"), dir.resolve("rejects.csv"), 1, r -> { });
+        long highest = maxId(books);
+
+        books = open(false);
+        assertEquals(2, books.all().size());
+        assertTrue(books.create("After", "Restart", 1).id > highest);
+    }
+}
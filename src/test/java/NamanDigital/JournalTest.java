@@ -0,0 +1,65 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Journal;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalTest {
+    @TempDir Path dir;
+
+    // SYNC, so every record is on disk once the call returns
+    private BookService open() {
+        CsvStore store = new CsvStore(dir.toString(), true, Journal.Durability.SYNC, 1, 0);
+        store.init();
+        return new BookService(store);
+    }
+
+    private Path log() { return dir.resolve("journal.log"); }
+
+    private void append(String text) throws Exception { Files.write(log(), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND); }
+
+    @Test
+    void aTornLastRecordIsSkippedAndCutOff() throws Exception {
+        BookService books = open();
+        for (int i = 0; i < 3; i++) books.create("Title " + i, "Author", 1);
+        append("B,1010,Tor"); // a crash mid-append
+
+        books = open();
+        assertEquals(3, books.all().size());
+        assertTrue(new String(Files.readAllBytes(log()), StandardCharsets.UTF_8).endsWith("\n"), "torn tail cut off");
+
+        // records appended after the cut replay as usual
+        books.create("Title 3", "Author", 1);
+        assertEquals(4, open().all().size());
+    }
+
+    @Test
+    void aMalformedLastLineIsTakenAsTorn() throws Exception {
+        BookService books = open();
+        books.create("Title", "Author", 1);
+        append("B,1010,Tor\n");
+        assertEquals(1, open().all().size());
+    }
+
+    @Test
+    void aMalformedRecordBeforeTheLastFailsWithItsLine() throws Exception {
+        BookService books = open();
+        books.create("Title 0", "Author", 1);
+        books.create("Title 1", "Author", 1);
+        String log = new String(Files.readAllBytes(log()), StandardCharsets.UTF_8);
+        long lines = log.chars().filter(c -> c == '\n').count();
+        append("B,1010,Bad\n" + log.substring(0, log.indexOf('\n') + 1)); // a valid record after the bad one
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, this::open);
+        assertEquals("Malformed journal record at journal.log line " + (lines + 1), e.getMessage());
+    }
+}
@@ -0,0 +1,87 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoanServiceTest {
+    @TempDir Path dir;
+
+    private CsvStore store;
+    private BookService books;
+    private LoanService loans;
+
+    private void open() {
+        store = new CsvStore(dir.toString());
+        store.init();
+        books = new BookService(store);
+        loans = new LoanService(store, books);
+    }
+
+    // Every copy is either on the shelf or out on an active loan
+    private void assertCopiesAccountedFor(BookService books, LoanService loans) {
+        for (Book b : books.all())
+            assertEquals(b.totalCopies, b.availableCopies + loans.activeForBook(b.id).size(), "copies of book " + b.id);
+    }
+
+    @Test
+    void concurrentIssuesAndReturnsKeepEveryCopyAccountedFor() throws Exception {
+        open();
+        List<Book> catalog = new ArrayList<>();
+        for (int i = 0; i < 10; i++) catalog.add(books.create("Title " + i, "Author " + i, 3));
+        int threads = 8, ops = 400;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int worker = t;
+            done.add(pool.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                List<Long> mine = new ArrayList<>();
+                for (int i = 0; i < ops; i++) {
+                    if (!mine.isEmpty() && rnd.nextBoolean()) {
+                        loans.returnBook(mine.remove(rnd.nextInt(mine.size())));
+                        continue;
+                    }
+                    Book b = catalog.get(rnd.nextInt(catalog.size()));
+                    try { mine.add(loans.issue(b.id, "user" + worker + "-" + i).id()); }
+                    catch (IllegalArgumentException e) { assertEquals("No copies available, place a hold", e.getMessage()); }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : done) f.get();
+        pool.shutdown();
+        assertCopiesAccountedFor(books, loans);
+
+        // and the same after a restart
+        store.checkpoint();
+        open();
+        assertCopiesAccountedFor(books, loans);
+    }
+
+    @Test
+    void totalCopiesCannotDropBelowTheCopiesOut() {
+        open();
+        Book b = books.create("Title", "Author", 3);
+        loans.issue(b.id, "alice");
+        loans.issue(b.id, "bob");
+        assertThrows(IllegalArgumentException.class, () -> books.update(b.id, null, null, 1));
+        assertTrue(books.update(b.id, null, null, 2));
+        assertEquals(0, b.availableCopies);
+        assertCopiesAccountedFor(books, loans);
+    }
+}
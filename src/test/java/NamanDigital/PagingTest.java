@@ -0,0 +1,137 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import NamanDigital.LibraryManagement.Page;
+import NamanDigital.LibraryManagement.User;
+import NamanDigital.LibraryManagement.UserService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PagingTest {
+    @TempDir Path dir;
+
+    private CsvStore open() {
+        CsvStore store = new CsvStore(dir.toString());
+        store.init();
+        return store;
+    }
+
+    // Every page of a listing, following next until it runs out
+    private static <T> List<T> walk(BiFunction<String, Integer, Page<T>> page, int limit) {
+        List<T> out = new ArrayList<>();
+        String cursor = null;
+        do {
+            Page<T> p = page.apply(cursor, limit);
+            assertTrue(p.items.size() <= limit);
+            assertTrue(p.next == null || p.items.size() == limit, "only the last page is short");
+            out.addAll(p.items);
+            cursor = p.next;
+        } while (cursor != null);
+        return out;
+    }
+
+    private static List<Long> ids(List<Book> books) { return books.stream().map(b -> b.id).collect(Collectors.toList()); }
+
+    @Test
+    void pagesCoverEveryBookOnceInEachOrder() {
+        BookService books = new BookService(open());
+        String[] titles = { "Emma", "dune", "Beloved", "Dune", "Ulysses", "Atonement", "emma" };
+        for (int i = 0; i < 50; i++) books.create(titles[i % titles.length] + (i < 7 ? "" : " " + i / 7), "Author " + (50 - i) % 9, 1);
+        List<Book> all = books.all();
+
+        for (int limit : new int[] { 1, 7, 10, 50, 1000 }) {
+            List<Book> byId = new ArrayList<>(all);
+            byId.sort(Comparator.comparingLong(b -> b.id));
+            assertEquals(ids(byId), ids(walk((c, n) -> books.page(BookService.Sort.ID, c, n), limit)));
+
+            // case-insensitive, ties in id order
+            List<Book> byTitle = new ArrayList<>(all);
+            byTitle.sort(Comparator.comparing((Book b) -> b.title.toLowerCase()).thenComparingLong(b -> b.id));
+            assertEquals(ids(byTitle), ids(walk((c, n) -> books.page(BookService.Sort.TITLE, c, n), limit)));
+
+            List<Book> byAuthor = new ArrayList<>(all);
+            byAuthor.sort(Comparator.comparing((Book b) -> b.author.toLowerCase()).thenComparingLong(b -> b.id));
+            assertEquals(ids(byAuthor), ids(walk((c, n) -> books.page(BookService.Sort.AUTHOR, c, n), limit)));
+        }
+    }
+
+    @Test
+    void changesBetweenPagesNeitherRepeatNorSkipTheRest() {
+        BookService books = new BookService(open());
+        List<Book> created = new ArrayList<>();
+        for (char c = 'b'; c <= 'y'; c++) created.add(books.create(c + " title", "Author", 1));
+
+        Page<Book> first = books.page(BookService.Sort.TITLE, null, 5); // b..f
+        assertTrue(books.delete(created.get(0).id));                    // already served
+        assertTrue(books.delete(created.get(10).id));                   // not reached yet
+        books.create("a title", "Author", 1);                           // sorts before the cursor
+        Book late = books.create("z title", "Author", 1);               // sorts after it
+
+        List<Book> rest = walk((c, n) -> books.page(BookService.Sort.TITLE, c == null ? first.next : c, n), 5);
+        List<String> seen = rest.stream().map(b -> b.title).collect(Collectors.toList());
+        List<String> expected = new ArrayList<>();
+        for (char c = 'g'; c <= 'y'; c++) if (c != 'l') expected.add(c + " title");
+        expected.add(late.title);
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    void usersArePagedByName() {
+        UserService users = new UserService(open());
+        for (String u : new String[] { "mia", "bob", "zoe", "ann", "kim" }) users.addUser(u, "secret", u);
+        List<String> names = walk(users::page, 2).stream().map((User u) -> u.username).collect(Collectors.toList());
+        assertEquals(Arrays.asList("admin", "ann", "bob", "kim", "mia", "zoe"), names);
+    }
+
+    @Test
+    void loansArePagedByDueDayThenId() throws Exception {
+        LocalDate today = LocalDate.now();
+        List<String> rows = new ArrayList<>(Arrays.asList("id,bookId,username,issueDate,dueDate,returnDate"));
+        int[] dueIn = { 3, -2, 3, 0, -2, 7, 3, 1, 0 };
+        for (int i = 0; i < dueIn.length; i++) {
+            LocalDate due = today.plusDays(dueIn[i]);
+            rows.add((i + 1) + ",1,reader" + i + "," + due.minusDays(14) + "," + due + ",");
+        }
+        Files.write(dir.resolve("books.csv"), Arrays.asList("id,title,author,total,available", "1,Dune,Frank Herbert,20,11"), StandardCharsets.UTF_8);
+        Files.write(dir.resolve("loans.csv"), rows, StandardCharsets.UTF_8);
+        CsvStore store = open();
+        LoanService loans = new LoanService(store, new BookService(store));
+
+        List<Long> byDue = walk((c, n) -> loans.page(LoanService.Sort.DUE, c, n), 2).stream().map(Loan::id).collect(Collectors.toList());
+        assertEquals(Arrays.asList(2L, 5L, 4L, 9L, 8L, 1L, 3L, 7L, 6L), byDue);
+        List<Long> byId = walk((c, n) -> loans.page(LoanService.Sort.ID, c, n), 4).stream().map(Loan::id).collect(Collectors.toList());
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), byId);
+
+        // returning a loan already served does not shift the next page
+        Page<Loan> first = loans.page(LoanService.Sort.DUE, null, 3);
+        loans.returnBook(2);
+        assertEquals(Arrays.asList(9L, 8L, 1L), loans.page(LoanService.Sort.DUE, first.next, 3).items.stream().map(Loan::id).collect(Collectors.toList()));
+    }
+
+    @Test
+    void badCursorsAndLimitsAreRejected() {
+        BookService books = new BookService(open());
+        for (int i = 0; i < 3; i++) books.create("Title " + i, "Author", 1);
+        assertEquals("Invalid cursor", assertThrows(IllegalArgumentException.class, () -> books.page(BookService.Sort.ID, "***", 10)).getMessage());
+        assertEquals("Invalid cursor", assertThrows(IllegalArgumentException.class, () -> books.page(BookService.Sort.ID, Page.cursor("abc"), 10)).getMessage());
+        assertEquals("limit must be positive", assertThrows(IllegalArgumentException.class, () -> books.page(BookService.Sort.ID, null, 0)).getMessage());
+        assertEquals(Page.MAX_LIMIT, Page.clamp(Integer.MAX_VALUE));
+    }
+}
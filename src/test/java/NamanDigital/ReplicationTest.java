@@ -0,0 +1,102 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Hold;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import NamanDigital.LibraryManagement.Replica;
+import NamanDigital.LibraryManagement.ReplicationSource;
+import NamanDigital.LibraryManagement.User;
+import NamanDigital.LibraryManagement.UserService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationTest {
+    @TempDir Path primaryDir;
+    @TempDir Path replicaDir;
+
+    private ReplicationSource source;
+
+    // One process's services over one store
+    private static final class Node {
+        final BookService books;
+        final UserService users;
+        final LoanService loans;
+
+        Node(CsvStore store) {
+            books = new BookService(store);
+            users = new UserService(store);
+            loans = new LoanService(store, books);
+        }
+
+        // Everything a replica answers queries from, in a stable order
+        List<String> state() {
+            List<String> out = new ArrayList<>();
+            for (Book b : books.all()) out.add("B " + b.id + " " + b.title + " " + b.author + " " + b.totalCopies + " " + b.availableCopies);
+            for (User u : users.all()) out.add("U " + u.username + " " + u.passwordHash + " " + u.fullName);
+            for (Loan l : loans.active()) out.add("L " + l.id() + " " + l.bookId() + " " + l.username() + " " + l.issueDate() + " " + l.dueDate());
+            for (Hold h : loans.holds()) out.add("H " + h.id + " " + h.bookId + " " + h.username + " " + h.placed + " " + h.pickupBy);
+            out.sort(null);
+            return out;
+        }
+    }
+
+    @AfterEach
+    void stop() { if (source != null) source.stop(); }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) { return s.getLocalPort(); }
+    }
+
+    private static void awaitConvergence(Node primary, Node replica, ReplicationSource source, Replica r) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((r.appliedLsn() < source.lsn() || !primary.state().equals(replica.state())) && System.currentTimeMillis() < deadline) Thread.sleep(20);
+        assertEquals(source.lsn(), r.appliedLsn());
+        assertEquals(primary.state(), replica.state());
+    }
+
+    @Test
+    void aReplicaTakesTheStateCopyThenFollowsEveryChange() throws Exception {
+        CsvStore store = new CsvStore(primaryDir.toString());
+        store.init();
+        Node primary = new Node(store);
+        primary.users.addUser("alice", "secret1", "Alice");
+        Book b1 = primary.books.create("Dune", "Herbert", 1);
+        Book b2 = primary.books.create("Emma", "Austen", 2);
+        Loan before = primary.loans.issue(b1.id, "alice");
+
+        int port = freePort();
+        source = new ReplicationSource(store, port);
+        source.start();
+        CsvStore replicaStore = new CsvStore(replicaDir.toString(), false);
+        replicaStore.init();
+        Node replica = new Node(replicaStore);
+        Replica r = new Replica(port, replicaStore, replica.books, replica.users, replica.loans, Replica.DEFAULT_MAX_LAG_MILLIS);
+        r.start();
+        awaitConvergence(primary, replica, source, r);
+
+        // books, users, loans and holds changed after the state copy
+        primary.users.addUser("bob", "secret2", "Bob");
+        primary.loans.placeHold(b1.id, "bob");
+        primary.loans.returnBook(before.id());
+        primary.loans.issue(b2.id, "alice");
+        primary.books.update(b2.id, "Emma (annotated)", null, 3);
+        Book b3 = primary.books.create("Ulysses", "Joyce", 1);
+        assertTrue(primary.books.delete(b3.id));
+        awaitConvergence(primary, replica, source, r);
+        assertTrue(replica.loans.holdsForUser("bob").get(0).isReady());
+        assertNull(replica.books.find(b3.id));
+        assertTrue(r.fresh());
+    }
+}
@@ -0,0 +1,79 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.LoanService;
+import NamanDigital.LibraryManagement.SessionCache;
+import NamanDigital.LibraryManagement.SessionCache.Session;
+import NamanDigital.LibraryManagement.UserService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionTest {
+    private static final long HOUR = 3_600_000;
+
+    @TempDir Path dir;
+
+    @Test
+    void aLoginTokenStandsInForThePasswordUntilLogout() {
+        CsvStore store = new CsvStore(dir.toString());
+        store.init();
+        UserService users = new UserService(store, new SessionCache(HOUR, 10));
+        LoanService loans = new LoanService(store, new BookService(store));
+        users.addUser("alice", "secret1", "Alice");
+        users.addUser("bob", "secret2", "Bob");
+
+        assertNull(users.login("alice", "wrong"));
+        assertNull(users.login("nobody", "secret1"));
+        Session s = users.login("alice", "secret1");
+        assertEquals("alice", s.username);
+        assertEquals("alice", users.sessionUser(s.token));
+        assertNull(users.sessionUser("not-a-token"));
+        users.logout(s.token);
+        assertNull(users.sessionUser(s.token));
+
+        // a deleted user's sessions go with them
+        Session bob = users.login("bob", "secret2");
+        assertTrue(users.deleteUser("bob", loans));
+        assertNull(users.sessionUser(bob.token));
+    }
+
+    @Test
+    void sessionsExpireAfterTheirLifetime() throws Exception {
+        SessionCache sessions = new SessionCache(100, 10);
+        Session s = sessions.open("alice");
+        assertEquals("alice", sessions.user(s.token));
+        Thread.sleep(150);
+        assertNull(sessions.user(s.token));
+        assertEquals(0, sessions.size(), "dropped on lookup");
+
+        // expired sessions nobody looks up again are trimmed by the next login
+        sessions.open("bob");
+        sessions.open("carol");
+        Thread.sleep(150);
+        Session dave = sessions.open("dave");
+        assertEquals(1, sessions.size());
+        assertEquals("dave", sessions.user(dave.token));
+    }
+
+    @Test
+    void theOldestSessionsMakeRoomOnceTheCacheIsFull() {
+        SessionCache sessions = new SessionCache(HOUR, 3);
+        List<Session> opened = new ArrayList<>();
+        for (int i = 0; i < 5; i++) opened.add(sessions.open("user" + i));
+        assertEquals(3, sessions.size());
+        assertNull(sessions.user(opened.get(0).token));
+        assertNull(sessions.user(opened.get(1).token));
+        for (int i = 2; i < 5; i++) assertEquals("user" + i, sessions.user(opened.get(i).token));
+
+        sessions.closeAll("user3");
+        assertNull(sessions.user(opened.get(3).token));
+        assertEquals(2, sessions.size());
+    }
+}
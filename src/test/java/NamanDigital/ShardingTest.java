@@ -0,0 +1,91 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Journal;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import NamanDigital.LibraryManagement.UserService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardingTest {
+    static final int SHARDS = 4;
+
+    @TempDir Path dir;
+
+    private CsvStore open(int shards) {
+        CsvStore store = new CsvStore(dir.toString(), true, Journal.Durability.GROUP, Journal.DEFAULT_GROUP_MILLIS, shards);
+        store.init();
+        return store;
+    }
+
+    private static int shardOf(long bookId) { return Math.floorMod(Long.hashCode(bookId), SHARDS); }
+
+    // The book ids in the given column of each data row of a shard's CSV
+    private List<Long> bookIds(int shard, String file, int column) throws Exception {
+        List<Long> ids = new ArrayList<>();
+        List<String> lines = Files.readAllLines(dir.resolve("shard-" + shard).resolve(file));
+        for (String line : lines.subList(1, lines.size())) ids.add(Long.parseLong(line.split(",")[column]));
+        return ids;
+    }
+
+    @Test
+    void booksLoansAndHoldsLiveInTheirBooksShard() throws Exception {
+        CsvStore store = open(SHARDS);
+        BookService books = new BookService(store);
+        LoanService loans = new LoanService(store, books);
+        new UserService(store); // a checkpoint needs every service bound
+        for (int i = 0; i < 20; i++) {
+            Book b = books.create("Title " + i, "Author", 1);
+            loans.issue(b.id, "reader" + i);
+            loans.placeHold(b.id, "waiter" + i);
+        }
+        store.checkpoint();
+
+        int rows = 0;
+        for (int s = 0; s < SHARDS; s++) {
+            for (long id : bookIds(s, "books.csv", 0)) { assertEquals(s, shardOf(id), "book " + id); rows++; }
+            for (long id : bookIds(s, "loans.csv", 1)) assertEquals(s, shardOf(id), "loan of book " + id);
+            for (long id : bookIds(s, "holds.csv", 1)) assertEquals(s, shardOf(id), "hold on book " + id);
+        }
+        assertEquals(20, rows);
+    }
+
+    @Test
+    void anUnshardedStoreIsSplitOnFirstShardedStart() {
+        CsvStore plain = open(0);
+        BookService books = new BookService(plain);
+        LoanService loans = new LoanService(plain, books);
+        new UserService(plain);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            Book b = books.create("Title " + i, "Author", 2);
+            ids.add(b.id);
+            loans.issue(b.id, "reader" + i);
+        }
+        plain.checkpoint();
+
+        CsvStore sharded = open(SHARDS);
+        BookService books2 = new BookService(sharded);
+        LoanService loans2 = new LoanService(sharded, books2);
+        assertEquals(12, books2.all().size());
+        for (long id : ids) {
+            assertEquals(1, books2.find(id).availableCopies);
+            List<Loan> active = loans2.activeForBook(id);
+            assertEquals(1, active.size());
+            loans2.returnBook(active.get(0).id());
+            assertEquals(2, books2.find(id).availableCopies);
+        }
+        assertThrows(IllegalStateException.class, () -> open(SHARDS - 1));
+        assertThrows(IllegalStateException.class, () -> open(0));
+    }
+}
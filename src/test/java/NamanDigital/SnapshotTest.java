@@ -0,0 +1,131 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.Book;
+import NamanDigital.LibraryManagement.BookService;
+import NamanDigital.LibraryManagement.CsvStore;
+import NamanDigital.LibraryManagement.Journal;
+import NamanDigital.LibraryManagement.Loan;
+import NamanDigital.LibraryManagement.LoanService;
+import NamanDigital.LibraryManagement.Metrics;
+import NamanDigital.LibraryManagement.User;
+import NamanDigital.LibraryManagement.UserService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+    @TempDir Path dir;
+
+    private CsvStore store;
+    private BookService books;
+    private UserService users;
+    private LoanService loans;
+
+    // SYNC, so the changes made after the checkpoint are in the journal before it is reopened
+    private void open() {
+        store = new CsvStore(dir.toString(), true, Journal.Durability.SYNC, 1, 0);
+        store.init();
+        books = new BookService(store);
+        users = new UserService(store);
+        loans = new LoanService(store, books);
+    }
+
+    private List<String> state() {
+        List<String> out = new ArrayList<>();
+        for (Book b : books.all()) out.add("B " + b.id + " " + b.title + " " + b.author + " " + b.totalCopies + " " + b.availableCopies);
+        for (User u : users.all()) out.add("U " + u.username + " " + u.passwordHash + " " + u.fullName);
+        for (Loan l : loans.active()) out.add("L " + l.id() + " " + l.bookId() + " " + l.username() + " " + l.issueDate() + " " + l.dueDate());
+        out.sort(null);
+        return out;
+    }
+
+    // A checkpointed library with some changes since, which only the journal holds
+    private List<String> library() {
+        open();
+        users.addUser("alice", "secret1", "Alice");
+        for (int i = 0; i < 5; i++) loans.issue(books.create("Title " + i, "Author " + i, 2).id, "alice");
+        loans.returnBook(loans.active().get(0).id());
+        store.checkpoint();
+        assertTrue(Files.exists(dir.resolve("snapshot.bin")));
+        loans.issue(books.create("Later", "Author", 1).id, "alice");
+        return state();
+    }
+
+    private void corrupt(int offset) throws IOException {
+        Path bin = dir.resolve("snapshot.bin");
+        byte[] bytes = Files.readAllBytes(bin);
+        bytes[offset < 0 ? bytes.length + offset : offset] ^= 0x5A;
+        Files.write(bin, bytes);
+    }
+
+    @Test
+    void aValidSnapshotRestoresTheLibrary() {
+        List<String> before = library();
+        long errors = Metrics.SNAPSHOT_READ.getErrors();
+        open();
+        assertEquals(before, state());
+        assertEquals(errors, Metrics.SNAPSHOT_READ.getErrors());
+    }
+
+    @Test
+    void aChecksumMismatchFallsBackToTheCsvs() throws Exception {
+        List<String> before = library();
+        corrupt(-1); // last byte of the loans section
+        IOException e = assertThrows(IOException.class, () -> LibraryManagement.Snapshot.read(dir.resolve("snapshot.bin")));
+        assertTrue(e.getMessage().startsWith("Checksum mismatch"), e.getMessage());
+
+        long errors = Metrics.SNAPSHOT_READ.getErrors();
+        open();
+        assertEquals(before, state());
+        assertEquals(errors + 1, Metrics.SNAPSHOT_READ.getErrors());
+    }
+
+    @Test
+    void anUnknownVersionFallsBackToTheCsvs() throws Exception {
+        List<String> before = library();
+        Path bin = dir.resolve("snapshot.bin");
+        byte[] bytes = Files.readAllBytes(bin);
+        ByteBuffer.wrap(bytes).putInt(4, LibraryManagement.Snapshot.VERSION + 1);
+        Files.write(bin, bytes);
+        IOException e = assertThrows(IOException.class, () -> LibraryManagement.Snapshot.read(bin));
+        assertEquals("Unsupported snapshot version " + (LibraryManagement.Snapshot.VERSION + 1), e.getMessage());
+
+        open();
+        assertEquals(before, state());
+    }
+
+    @Test
+    void aTruncatedSnapshotFallsBackToTheCsvs() throws Exception {
+        List<String> before = library();
+        Path bin = dir.resolve("snapshot.bin");
+        byte[] bytes = Files.readAllBytes(bin);
+        Files.write(bin, Arrays.copyOf(bytes, bytes.length / 2));
+        assertThrows(IOException.class, () -> LibraryManagement.Snapshot.read(bin));
+
+        open();
+        assertEquals(before, state());
+    }
+
+    @Test
+    void aFailedCheckpointIsReportedWithoutInterrupting() throws Exception {
+        open();
+        books.create("Title", "Author", 1);
+        Path csv = dir.resolve("books.csv");
+        Files.delete(csv);
+        Files.createDirectories(csv.resolve("in-the-way")); // the CSV can't be replaced
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, store::checkpoint);
+        assertNotNull(e.getCause());
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertFalse(Files.exists(dir.resolve("snapshot.bin")));
+    }
+}
@@ -0,0 +1,76 @@
+package NamanDigital;
+
+import NamanDigital.LibraryManagement.SpaceSaving;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpaceSavingTest {
+    private static Map<String, Long> counts(SpaceSaving<String> s) {
+        Map<String, Long> m = new HashMap<>();
+        s.addTo(m);
+        return m;
+    }
+
+    @Test
+    void countsAreExactWhileThereIsRoom() {
+        SpaceSaving<String> s = new SpaceSaving<>(3);
+        s.add("a", 2);
+        s.add("b", 1);
+        s.add("a", 3);
+        s.add("c", 4);
+        assertEquals(Map.of("a", 5L, "b", 1L, "c", 4L), counts(s));
+        assertEquals(10, s.total());
+        List<Map.Entry<String, Long>> top = s.top(2);
+        assertEquals("a", top.get(0).getKey());
+        assertEquals("c", top.get(1).getKey());
+    }
+
+    @Test
+    void aNewKeyReplacesTheSmallestCounterAndInheritsItsCount() {
+        SpaceSaving<String> s = new SpaceSaving<>(3);
+        s.add("a", 5);
+        s.add("b", 3);
+        s.add("c", 1);
+        s.add("d", 1); // c goes, d starts from its 1
+        assertEquals(Map.of("a", 5L, "b", 3L, "d", 2L), counts(s));
+        s.add("e", 4); // d is now the smallest
+        assertEquals(Map.of("a", 5L, "b", 3L, "e", 6L), counts(s));
+        s.add("b", 1);
+        s.add("f", 1); // b at 4 is the smallest
+        assertEquals(Map.of("a", 5L, "f", 5L, "e", 6L), counts(s));
+        assertEquals(16, s.total());
+    }
+
+    @Test
+    void heavyHittersAreKeptAndNeverUndercounted() {
+        int capacity = 20;
+        SpaceSaving<String> s = new SpaceSaving<>(capacity);
+        Map<String, Long> exact = new HashMap<>();
+        Random rnd = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            // a few hot keys among a long tail
+            String key = rnd.nextInt(2) == 0 ? "hot" + rnd.nextInt(5) : "tail" + rnd.nextInt(2_000);
+            long n = 1 + rnd.nextInt(3);
+            s.add(key, n);
+            exact.merge(key, n, Long::sum);
+        }
+        long total = exact.values().stream().mapToLong(Long::longValue).sum();
+        assertEquals(total, s.total());
+        Map<String, Long> held = counts(s);
+        assertEquals(capacity, held.size());
+        assertEquals(total, held.values().stream().mapToLong(Long::longValue).sum(), "evictions move counts, never drop them");
+        for (Map.Entry<String, Long> e : held.entrySet()) {
+            long actual = exact.get(e.getKey());
+            assertTrue(e.getValue() >= actual, e.getKey() + " undercounted");
+            assertTrue(e.getValue() - actual <= total / capacity, e.getKey() + " overcounted by more than total/capacity");
+        }
+        exact.forEach((k, n) -> { if (n > total / capacity) assertTrue(held.containsKey(k), k + " with " + n + " was evicted"); });
+        for (Map.Entry<String, Long> e : s.top(5)) assertTrue(e.getKey().startsWith("hot"), e.getKey());
+    }
+}